@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.media.AudioManager;
+import android.os.SystemClock;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+/**
+ * The audio focus, mode, speakerphone and microphone mute state which {@link CallAudioManager}
+ * has applied to {@link AudioManager}. {@link CallAudioManager} works out the state it wants on
+ * every listener callback, and this class diffs that against what was last applied so that only
+ * calls which change something reach AudioManager. Getters on AudioManager are IPCs too, so a
+ * value is only read back from AudioManager when it is not known: before focus is first gained,
+ * after focus was abandoned (other apps may have changed it since) and after {@link #invalidate}.
+ *
+ * Also measures the latency of each transition and counts the issued and suppressed calls for
+ * dumpsys. Must only be used on the main thread.
+ */
+final class AppliedAudioState {
+    static final int STREAM_NONE = -1;
+
+    // Transition types measured through onTransitionStarted and onTransitionFinished.
+    static final int TRANSITION_MODE = 0;
+    static final int TRANSITION_ROUTE = 1;
+    private static final String[] TRANSITION_NAMES = { "mode", "route" };
+
+    // AudioManager setters, for the issued and suppressed counts.
+    private static final int CALL_REQUEST_FOCUS = 0;
+    private static final int CALL_SET_MODE = 1;
+    private static final int CALL_SET_SPEAKERPHONE = 2;
+    private static final int CALL_SET_MICROPHONE_MUTE = 3;
+    private static final String[] CALL_NAMES = {
+            "requestAudioFocusForCall", "setMode", "setSpeakerphoneOn", "setMicrophoneMute" };
+
+    private static final int MODE_UNKNOWN = AudioManager.MODE_INVALID;
+
+    // Applied state of the boolean settings.
+    private static final int STATE_UNKNOWN = -1;
+    private static final int STATE_OFF = 0;
+    private static final int STATE_ON = 1;
+
+    private final AudioManager mAudioManager;
+    private final MessageLatencyStats mTransitionStats =
+            new MessageLatencyStats(TRANSITION_NAMES, false /* recordsWait */);
+    private final long[] mIssuedCalls = new long[CALL_NAMES.length];
+    private final long[] mSuppressedCalls = new long[CALL_NAMES.length];
+
+    private int mFocusStreamType = STREAM_NONE;
+    private int mMode = MODE_UNKNOWN;
+    private int mSpeakerphoneState = STATE_UNKNOWN;
+    private int mMicrophoneMuteState = STATE_UNKNOWN;
+
+    AppliedAudioState(AudioManager audioManager) {
+        mAudioManager = audioManager;
+    }
+
+    int getFocusStreamType() {
+        return mFocusStreamType;
+    }
+
+    boolean hasFocus() {
+        return mFocusStreamType != STREAM_NONE;
+    }
+
+    /**
+     * Requests audio focus for the specified stream. Even if we already have focus, if the stream
+     * is different we update audio manager to give it a hint about the purpose of our focus.
+     *
+     * @param stream The stream type.
+     */
+    void requestFocus(int stream) {
+        if (mFocusStreamType == stream) {
+            mSuppressedCalls[CALL_REQUEST_FOCUS]++;
+            return;
+        }
+        if (mFocusStreamType == STREAM_NONE) {
+            // Others may have changed the state while we did not hold focus.
+            invalidate();
+        }
+        Log.v(this, "requesting audio focus for stream: %d", stream);
+        mAudioManager.requestAudioFocusForCall(stream, AudioManager.AUDIOFOCUS_GAIN_TRANSIENT);
+        mIssuedCalls[CALL_REQUEST_FOCUS]++;
+        mFocusStreamType = stream;
+    }
+
+    /** Abandons audio focus. */
+    void abandonFocus() {
+        Log.v(this, "abandoning audio focus");
+        mAudioManager.abandonAudioFocusForCall();
+        mFocusStreamType = STREAM_NONE;
+        invalidate();
+    }
+
+    /**
+     * Sets the audio mode.
+     *
+     * @param newMode Mode constant from AudioManager.MODE_*.
+     * @return True if the mode was changed.
+     */
+    boolean setMode(int newMode) {
+        if (mMode == MODE_UNKNOWN) {
+            mMode = mAudioManager.getMode();
+        }
+        int oldMode = mMode;
+        Log.v(this, "Request to change audio mode from %d to %d", oldMode, newMode);
+
+        if (oldMode == newMode) {
+            mSuppressedCalls[CALL_SET_MODE]++;
+            return false;
+        }
+        if (oldMode == AudioManager.MODE_IN_CALL && newMode == AudioManager.MODE_RINGTONE) {
+            Log.i(this, "Transition from IN_CALL -> RINGTONE. Resetting to NORMAL first.");
+            mAudioManager.setMode(AudioManager.MODE_NORMAL);
+            mIssuedCalls[CALL_SET_MODE]++;
+        }
+        mAudioManager.setMode(newMode);
+        mIssuedCalls[CALL_SET_MODE]++;
+        mMode = newMode;
+        return true;
+    }
+
+    /**
+     * @param on True to turn the speakerphone on.
+     * @return True if the speakerphone state was changed.
+     */
+    boolean setSpeakerphoneOn(boolean on) {
+        if (mSpeakerphoneState == STATE_UNKNOWN) {
+            mSpeakerphoneState = mAudioManager.isSpeakerphoneOn() ? STATE_ON : STATE_OFF;
+        }
+        if ((mSpeakerphoneState == STATE_ON) == on) {
+            mSuppressedCalls[CALL_SET_SPEAKERPHONE]++;
+            return false;
+        }
+        mAudioManager.setSpeakerphoneOn(on);
+        mIssuedCalls[CALL_SET_SPEAKERPHONE]++;
+        mSpeakerphoneState = on ? STATE_ON : STATE_OFF;
+        return true;
+    }
+
+    /**
+     * @param mute True to mute the microphone.
+     * @return True if the microphone mute state was changed.
+     */
+    boolean setMicrophoneMute(boolean mute) {
+        if (mMicrophoneMuteState == STATE_UNKNOWN) {
+            mMicrophoneMuteState = mAudioManager.isMicrophoneMute() ? STATE_ON : STATE_OFF;
+        }
+        if ((mMicrophoneMuteState == STATE_ON) == mute) {
+            mSuppressedCalls[CALL_SET_MICROPHONE_MUTE]++;
+            return false;
+        }
+        mAudioManager.setMicrophoneMute(mute);
+        mIssuedCalls[CALL_SET_MICROPHONE_MUTE]++;
+        mMicrophoneMuteState = mute ? STATE_ON : STATE_OFF;
+        return true;
+    }
+
+    /**
+     * Forgets the applied mode, speakerphone and microphone mute state so that they are read
+     * back from AudioManager the next time they are set.
+     */
+    void invalidate() {
+        mMode = MODE_UNKNOWN;
+        mSpeakerphoneState = STATE_UNKNOWN;
+        mMicrophoneMuteState = STATE_UNKNOWN;
+    }
+
+    /**
+     * @return The start time to pass to {@link #onTransitionFinished}.
+     */
+    long onTransitionStarted() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * @param transition The transition type, TRANSITION_*.
+     * @param startNanos The value returned by {@link #onTransitionStarted}.
+     */
+    void onTransitionFinished(int transition, long startNanos) {
+        mTransitionStats.record(transition, 0,
+                (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000);
+    }
+
+    /**
+     * Dumps the state of the {@link AppliedAudioState}.
+     *
+     * @param pw The {@code IndentingPrintWriter} to write the state to.
+     */
+    void dump(IndentingPrintWriter pw) {
+        pw.println("focus stream: " + mFocusStreamType + ", mode: " + mMode + ", speakerphone: "
+                + mSpeakerphoneState + ", microphone mute: " + mMicrophoneMuteState);
+        pw.println("Transitions:");
+        pw.increaseIndent();
+        mTransitionStats.dump(pw);
+        pw.decreaseIndent();
+        pw.println("AudioManager calls:");
+        pw.increaseIndent();
+        for (int i = 0; i < CALL_NAMES.length; i++) {
+            pw.println(CALL_NAMES[i] + ": issued=" + mIssuedCalls[i] + " suppressed="
+                    + mSuppressedCalls[i]);
+        }
+        pw.decreaseIndent();
+    }
+}
@@ -17,6 +17,7 @@
 package com.android.server.telecom;
 
 import android.content.Context;
+import android.database.ContentObserver;
 import android.media.AudioManager;
 import android.media.Ringtone;
 import android.media.RingtoneManager;
@@ -24,31 +25,51 @@ import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.telephony.TelephonyManager;
 
+import com.android.internal.os.SomeArgs;
+import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.Preconditions;
 
 /**
  * Plays the default ringtone. Uses {@link Ringtone} in a separate thread so that this class can be
  * used from the main thread.
+ *
+ * When {@code R.bool.config_preload_ringtone} is set the ringtone thread is kept alive and the
+ * default ringtone is kept resolved and prepared, so that the first ring does not wait for a
+ * thread to start and the media to be prepared. A {@link Ringtone} cannot be replayed once
+ * stopped, so a fresh one is prepared after every stop and whenever the ringtone setting changes.
  */
 class AsyncRingtonePlayer {
     // Message codes used with the ringtone thread.
     private static final int EVENT_PLAY = 1;
     private static final int EVENT_STOP = 2;
     private static final int EVENT_REPEAT = 3;
+    private static final int EVENT_PRELOAD = 4;
 
     // The interval in which to restart the ringer.
     private static final int RESTART_RINGER_MILLIS = 3000;
 
+    // Codes for the ring start latency stats.
+    private static final int START_COLD = 0;
+    private static final int START_WARM = 1;
+    private static final String[] START_NAMES = { "cold", "warm" };
+
     /** Handler running on the ringtone thread. */
     private Handler mHandler;
 
     /** The current ringtone. Only used by the ringtone thread. */
     private Ringtone mRingtone;
 
-    private int mPhoneId = 0;
+    /** The prepared default ringtone, if any. Only used by the ringtone thread. */
+    private Ringtone mPreloadedRingtone;
+
+    /** The URI {@link #mPreloadedRingtone} was created for. Only used by the ringtone thread. */
+    private Uri mPreloadedRingtoneUri;
+
+    private volatile int mPhoneId = 0;
 
     void setPhoneId(int phoneId) {
         mPhoneId = phoneId;
@@ -59,14 +80,42 @@ class AsyncRingtonePlayer {
      */
     private final Context mContext;
 
+    private final boolean mIsPreloadEnabled;
+
+    /** Time from the call being added to the ringtone starting, by whether it was preloaded. */
+    private final MessageLatencyStats mStartLatencyStats =
+            new MessageLatencyStats(START_NAMES, false /* recordsWait */);
+
     AsyncRingtonePlayer(Context context) {
         mContext = context;
+        mIsPreloadEnabled = context.getResources().getBoolean(R.bool.config_preload_ringtone);
+        if (mIsPreloadEnabled) {
+            context.getContentResolver().registerContentObserver(
+                    Settings.System.getUriFor(Settings.System.RINGTONE), false,
+                    new ContentObserver(new Handler()) {
+                        @Override
+                        public void onChange(boolean selfChange) {
+                            Log.d(AsyncRingtonePlayer.this, "Ringtone setting changed.");
+                            postMessage(EVENT_PRELOAD, true /* shouldCreateHandler */, null);
+                        }
+                    });
+            postMessage(EVENT_PRELOAD, true /* shouldCreateHandler */, null);
+        }
     }
 
-    /** Plays the ringtone. */
-    void play(Uri ringtone) {
+    /**
+     * Plays the ringtone.
+     *
+     * @param ringtone The ringtone to play, or null for the default ringtone.
+     * @param callAddedNanos When the ringing call was added, from
+     *         {@link SystemClock#elapsedRealtimeNanos}, or 0 if unknown.
+     */
+    void play(Uri ringtone, long callAddedNanos) {
         Log.d(this, "Posting play.");
-        postMessage(EVENT_PLAY, true /* shouldCreateHandler */, ringtone);
+        SomeArgs args = SomeArgs.obtain();
+        args.arg1 = ringtone;
+        args.arg2 = callAddedNanos;
+        postMessage(EVENT_PLAY, true /* shouldCreateHandler */, args);
     }
 
     /** Stops playing the ringtone. */
@@ -81,8 +130,9 @@ class AsyncRingtonePlayer {
      *
      * @param messageCode The message to post.
      * @param shouldCreateHandler True when a handler should be created to handle this message.
+     * @param obj The message object.
      */
-    private void postMessage(int messageCode, boolean shouldCreateHandler, Uri ringtone) {
+    private void postMessage(int messageCode, boolean shouldCreateHandler, Object obj) {
         synchronized(this) {
             if (mHandler == null && shouldCreateHandler) {
                 mHandler = getNewHandler();
@@ -90,8 +140,11 @@ class AsyncRingtonePlayer {
 
             if (mHandler == null) {
                 Log.d(this, "Message %d skipped because there is no handler.", messageCode);
+                if (obj instanceof SomeArgs) {
+                    ((SomeArgs) obj).recycle();
+                }
             } else {
-                mHandler.obtainMessage(messageCode, ringtone).sendToTarget();
+                mHandler.obtainMessage(messageCode, obj).sendToTarget();
             }
         }
     }
@@ -109,15 +162,24 @@ class AsyncRingtonePlayer {
             @Override
             public void handleMessage(Message msg) {
                 switch(msg.what) {
-                    case EVENT_PLAY:
-                        handlePlay((Uri) msg.obj);
+                    case EVENT_PLAY: {
+                        SomeArgs args = (SomeArgs) msg.obj;
+                        try {
+                            handlePlay((Uri) args.arg1, (Long) args.arg2);
+                        } finally {
+                            args.recycle();
+                        }
                         break;
+                    }
                     case EVENT_REPEAT:
                         handleRepeat();
                         break;
                     case EVENT_STOP:
                         handleStop();
                         break;
+                    case EVENT_PRELOAD:
+                        handlePreload();
+                        break;
                 }
             }
         };
@@ -126,7 +188,7 @@ class AsyncRingtonePlayer {
     /**
      * Starts the actual playback of the ringtone. Executes on ringtone-thread.
      */
-    private void handlePlay(Uri ringtoneUri) {
+    private void handlePlay(Uri ringtoneUri, long callAddedNanos) {
         // don't bother with any of this if there is an EVENT_STOP waiting.
         if (mHandler.hasMessages(EVENT_STOP)) {
             return;
@@ -136,13 +198,33 @@ class AsyncRingtonePlayer {
         Log.i(this, "Play ringtone.");
 
         if (mRingtone == null) {
-            mRingtone = getRingtone(ringtoneUri);
+            boolean isWarm = false;
+            ringtoneUri = resolveRingtoneUri(ringtoneUri);
+            if (ringtoneUri != null && mPreloadedRingtone != null
+                    && ringtoneUri.equals(mPreloadedRingtoneUri)) {
+                mRingtone = mPreloadedRingtone;
+                mPreloadedRingtone = null;
+                mPreloadedRingtoneUri = null;
+                isWarm = true;
+            } else {
+                mRingtone = getRingtone(ringtoneUri);
+            }
 
             // Cancel everything if there is no ringtone.
             if (mRingtone == null) {
                 handleStop();
                 return;
             }
+
+            mRingtone.play();
+            if (callAddedNanos > 0) {
+                long micros = (SystemClock.elapsedRealtimeNanos() - callAddedNanos) / 1000;
+                Log.i(this, "Ringtone started %d ms after call was added, preloaded: %b",
+                        micros / 1000, isWarm);
+                synchronized (mStartLatencyStats) {
+                    mStartLatencyStats.record(isWarm ? START_WARM : START_COLD, 0, micros);
+                }
+            }
         }
 
         handleRepeat();
@@ -186,7 +268,12 @@ class AsyncRingtonePlayer {
             // queue.
             mHandler.removeMessages(EVENT_REPEAT);
 
-            if (mHandler.hasMessages(EVENT_PLAY)) {
+            if (mIsPreloadEnabled) {
+                mHandler.removeMessages(EVENT_STOP);
+                if (mPreloadedRingtone == null && !mHandler.hasMessages(EVENT_PRELOAD)) {
+                    mHandler.sendEmptyMessage(EVENT_PRELOAD);
+                }
+            } else if (mHandler.hasMessages(EVENT_PLAY)) {
                 Log.v(this, "Keeping alive ringtone thread for subsequent play request.");
             } else {
                 mHandler.removeMessages(EVENT_STOP);
@@ -197,20 +284,66 @@ class AsyncRingtonePlayer {
         }
     }
 
-    private Ringtone getRingtone(Uri ringtoneUri) {
+    /**
+     * Replaces the preloaded ringtone with a freshly prepared default ringtone. Executes on the
+     * ringtone-thread.
+     */
+    private void handlePreload() {
+        ThreadUtil.checkNotOnMainThread();
+
+        if (mPreloadedRingtone != null) {
+            mPreloadedRingtone.stop();
+            mPreloadedRingtone = null;
+            mPreloadedRingtoneUri = null;
+        }
+
+        Uri ringtoneUri = resolveRingtoneUri(null);
+        if (ringtoneUri != null) {
+            mPreloadedRingtone = getRingtone(ringtoneUri);
+            mPreloadedRingtoneUri = mPreloadedRingtone != null ? ringtoneUri : null;
+        }
+        Log.d(this, "Preloaded ringtone: %s", mPreloadedRingtoneUri);
+    }
+
+    /**
+     * @param ringtoneUri The requested ringtone, or null for the default ringtone.
+     * @return The ringtone to play, or null if there is none.
+     */
+    private Uri resolveRingtoneUri(Uri ringtoneUri) {
         if (ringtoneUri == null) {
             if (TelephonyManager.getDefault().isMultiSimEnabled()) {
                 ringtoneUri = RingtoneManager.getActualRingtoneUriBySubId(mContext, mPhoneId);
-                if (ringtoneUri == null) {
-                    return null;
-                }
             } else {
                 ringtoneUri = Settings.System.DEFAULT_RINGTONE_URI;
             }
         }
+        return ringtoneUri;
+    }
+
+    private Ringtone getRingtone(Uri ringtoneUri) {
+        if (ringtoneUri == null) {
+            return null;
+        }
 
         Ringtone ringtone = RingtoneManager.getRingtone(mContext, ringtoneUri);
-        ringtone.setStreamType(AudioManager.STREAM_RING);
+        if (ringtone != null) {
+            ringtone.setStreamType(AudioManager.STREAM_RING);
+        }
         return ringtone;
     }
+
+    /**
+     * Dumps the state of the {@link AsyncRingtonePlayer}.
+     *
+     * @param pw The {@code IndentingPrintWriter} to write the state to.
+     */
+    void dump(IndentingPrintWriter pw) {
+        pw.println("preload enabled: " + mIsPreloadEnabled);
+        pw.println("Ringtone start latency after call added:");
+        pw.increaseIndent();
+        synchronized (mStartLatencyStats) {
+            mStartLatencyStats.dump(pw);
+        }
+        pw.decreaseIndent();
+    }
 }
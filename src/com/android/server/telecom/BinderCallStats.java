@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.content.pm.PackageManager;
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Call counts and latency histograms for the methods of a binder interface, split by the kind of
+ * caller. In addition the busiest calling UIDs are counted per method, so that apps which poll an
+ * API in a tight loop can be identified from a bug report. Calls are recorded by transaction code,
+ * typically from an {@code onTransact} override of the interface's stub.
+ *
+ * All storage is allocated up front. Recording takes a short lock since binder calls arrive on
+ * many threads at once.
+ */
+final class BinderCallStats {
+    private static final int BUCKET_SYSTEM = 0;
+    private static final int BUCKET_APP = 1;
+    private static final String[] BUCKET_NAMES = { "system", "app" };
+
+    /**
+     * Maximum number of distinct calling UIDs counted at once. A new UID beyond this takes over the
+     * slot of the least recently seen one.
+     */
+    private static final int MAX_UIDS = 32;
+
+    /** Prefix of the transaction code constants in AIDL generated stubs. */
+    private static final String TRANSACTION_PREFIX = "TRANSACTION_";
+
+    /** Number of busiest UIDs dumped per method. */
+    private static final int TOP_UIDS = 3;
+
+    private final String[] mMethodNames;
+    private final int mMethodCount;
+    private final MessageLatencyStats mLatencyStats;
+    private final int[] mUids = new int[MAX_UIDS];
+    /** Value of {@link #mCallCount} at each UID's latest call. */
+    private final long[] mUidLastCalls = new long[MAX_UIDS];
+    private int mUidCount;
+    private final long[] mUidCallCounts;
+    private long mCallCount;
+    private long mEvictedUidCalls;
+
+    /**
+     * Returns the method names of an AIDL generated stub, indexed by transaction code minus
+     * {@link IBinder#FIRST_CALL_TRANSACTION}. Codes without a method have a {@code null} name.
+     *
+     * @param stubClass The {@code Stub} class generated for the interface.
+     */
+    static String[] getTransactionNames(Class<?> stubClass) {
+        Field[] fields = stubClass.getDeclaredFields();
+        String[] names = new String[0];
+        for (Field field : fields) {
+            if (!field.getName().startsWith(TRANSACTION_PREFIX)
+                    || !Modifier.isStatic(field.getModifiers())
+                    || field.getType() != int.class) {
+                continue;
+            }
+            try {
+                field.setAccessible(true);
+                int method = field.getInt(null) - IBinder.FIRST_CALL_TRANSACTION;
+                if (method < 0) {
+                    continue;
+                }
+                if (method >= names.length) {
+                    String[] grown = new String[method + 1];
+                    System.arraycopy(names, 0, grown, 0, names.length);
+                    names = grown;
+                }
+                names[method] = field.getName().substring(TRANSACTION_PREFIX.length());
+            } catch (IllegalAccessException | SecurityException e) {
+                Log.w("BinderCallStats", "Cannot read %s", field.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @param methodNames Display names of the binder methods, indexed by transaction code minus
+     *         {@link IBinder#FIRST_CALL_TRANSACTION}, see {@link #getTransactionNames}.
+     */
+    BinderCallStats(String[] methodNames) {
+        mMethodNames = methodNames;
+        mMethodCount = methodNames.length;
+        String[] names = new String[mMethodCount * BUCKET_NAMES.length];
+        for (int method = 0; method < mMethodCount; method++) {
+            for (int bucket = 0; bucket < BUCKET_NAMES.length; bucket++) {
+                names[method * BUCKET_NAMES.length + bucket] =
+                        getMethodName(method) + "[" + BUCKET_NAMES[bucket] + "]";
+            }
+        }
+        mLatencyStats = new MessageLatencyStats(names, false /* recordsWait */);
+        mUidCallCounts = new long[MAX_UIDS * mMethodCount];
+    }
+
+    /**
+     * @return The start time to pass to {@link #onCallFinished}.
+     */
+    long onCallStarted() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Records a binder call. Must be called on the binder thread, with the caller's identity
+     * restored. Codes outside the interface's methods, such as dump or interface queries, are
+     * ignored.
+     *
+     * @param code The transaction code.
+     * @param startNanos The value returned by {@link #onCallStarted}.
+     */
+    void onCallFinished(int code, long startNanos) {
+        int method = code - IBinder.FIRST_CALL_TRANSACTION;
+        if (method < 0 || method >= mMethodCount) {
+            return;
+        }
+        long micros = (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000;
+        int uid = Binder.getCallingUid();
+        int bucket = uid < Process.FIRST_APPLICATION_UID ? BUCKET_SYSTEM : BUCKET_APP;
+        synchronized (this) {
+            mLatencyStats.record(method * BUCKET_NAMES.length + bucket, 0, micros);
+            int uidIndex = indexOfUid(uid);
+            mUidLastCalls[uidIndex] = ++mCallCount;
+            mUidCallCounts[uidIndex * mMethodCount + method]++;
+        }
+    }
+
+    /** Returns the slot of the UID, taking over the least recently seen slot if needed. */
+    private int indexOfUid(int uid) {
+        for (int i = 0; i < mUidCount; i++) {
+            if (mUids[i] == uid) {
+                return i;
+            }
+        }
+        if (mUidCount < MAX_UIDS) {
+            mUids[mUidCount] = uid;
+            return mUidCount++;
+        }
+
+        int oldest = 0;
+        for (int i = 1; i < MAX_UIDS; i++) {
+            if (mUidLastCalls[i] < mUidLastCalls[oldest]) {
+                oldest = i;
+            }
+        }
+        for (int method = 0; method < mMethodCount; method++) {
+            mEvictedUidCalls += mUidCallCounts[oldest * mMethodCount + method];
+            mUidCallCounts[oldest * mMethodCount + method] = 0;
+        }
+        mUids[oldest] = uid;
+        return oldest;
+    }
+
+    private String getMethodName(int method) {
+        String name = mMethodNames[method];
+        return name != null ? name : "transaction" + (method + IBinder.FIRST_CALL_TRANSACTION);
+    }
+
+    /** Clears all recorded values. */
+    synchronized void reset() {
+        mLatencyStats.reset();
+        for (int i = 0; i < mUidCallCounts.length; i++) {
+            mUidCallCounts[i] = 0;
+        }
+        mUidCount = 0;
+        mCallCount = 0;
+        mEvictedUidCalls = 0;
+    }
+
+    /**
+     * Dumps the state of the {@link BinderCallStats}.
+     *
+     * @param pw The {@code IndentingPrintWriter} to write the state to.
+     * @param packageManager Used to name the busiest calling UIDs.
+     */
+    void dump(IndentingPrintWriter pw, PackageManager packageManager) {
+        int[] topUids = new int[mMethodCount * TOP_UIDS];
+        long[] topCounts = new long[mMethodCount * TOP_UIDS];
+        long evictedUidCalls;
+        synchronized (this) {
+            mLatencyStats.dump(pw);
+            for (int method = 0; method < mMethodCount; method++) {
+                for (int i = 0; i < mUidCount; i++) {
+                    insertTopUid(topUids, topCounts, method, mUids[i],
+                            mUidCallCounts[i * mMethodCount + method]);
+                }
+            }
+            evictedUidCalls = mEvictedUidCalls;
+        }
+
+        // Resolve package names outside the lock since it calls into the package manager.
+        pw.println("Busiest callers:");
+        pw.increaseIndent();
+        for (int method = 0; method < mMethodCount; method++) {
+            if (topCounts[method * TOP_UIDS] == 0) {
+                continue;
+            }
+            StringBuilder sb = new StringBuilder(getMethodName(method)).append(':');
+            for (int i = 0; i < TOP_UIDS; i++) {
+                int index = method * TOP_UIDS + i;
+                if (topCounts[index] == 0) {
+                    break;
+                }
+                sb.append(' ').append(packageManager.getNameForUid(topUids[index]))
+                        .append('(').append(topUids[index]).append(")=").append(topCounts[index]);
+            }
+            pw.println(sb.toString());
+        }
+        if (evictedUidCalls > 0) {
+            pw.println("calls from evicted uids: " + evictedUidCalls);
+        }
+        pw.decreaseIndent();
+    }
+
+    private static void insertTopUid(int[] topUids, long[] topCounts, int method, int uid,
+            long count) {
+        int base = method * TOP_UIDS;
+        for (int i = 0; i < TOP_UIDS; i++) {
+            if (count > topCounts[base + i]) {
+                for (int j = TOP_UIDS - 1; j > i; j--) {
+                    topUids[base + j] = topUids[base + j - 1];
+                    topCounts[base + j] = topCounts[base + j - 1];
+                }
+                topUids[base + i] = uid;
+                topCounts[base + i] = count;
+                return;
+            }
+        }
+    }
+}
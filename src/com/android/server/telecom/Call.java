@@ -151,7 +151,7 @@ final class Call implements CreateConnectionResponse {
                 @Override
                 public void onQueryComplete(int token, Object cookie, CallerInfo callerInfo) {
                     if (cookie != null) {
-                        ((Call) cookie).setCallerInfo(callerInfo, token);
+                        ((Call) cookie).onCallerInfoQueryComplete(callerInfo, token);
                     }
                 }
             };
@@ -272,6 +272,9 @@ final class Call implements CreateConnectionResponse {
     /** The latest token used with a contact info query. */
     private int mQueryToken = 0;
 
+    /** The normalized number the latest contact info query was made for, or null. */
+    private String mCallerInfoLookupNumber;
+
     /** Whether this call is requesting that Telecom play the ringback tone on its behalf. */
     private boolean mRingbackRequested = false;
 
@@ -313,6 +316,14 @@ final class Call implements CreateConnectionResponse {
 
     private boolean mIsLocallyDisconnecting = false;
 
+    /**
+     * IDs assigned to this call by each {@link CallIdMapper} which tracks it, stored as
+     * alternating (mapper, id) pairs. A call is normally known to at most a couple of mappers
+     * (its connection service and the in-call services) so a linear scan beats hashing. Only
+     * accessed from the main thread.
+     */
+    private Object[] mCallIdSlots = new Object[4];
+
     /**
      * Persists the specified parameters and initializes the new instance.
      *
@@ -346,12 +357,13 @@ final class Call implements CreateConnectionResponse {
 
         mContext = context;
         mRepository = repository;
+        // Set before the handle since a cached caller info lookup completes within setHandle.
+        mIsIncoming = isIncoming;
         setHandle(handle);
         setHandle(handle, TelecomManager.PRESENTATION_ALLOWED);
         mGatewayInfo = gatewayInfo;
         setConnectionManagerPhoneAccount(connectionManagerPhoneAccountHandle);
         setTargetPhoneAccount(targetPhoneAccountHandle);
-        mIsIncoming = isIncoming;
         mIsConference = isConference;
         maybeLoadCannedSmsResponses();
     }
@@ -387,6 +399,59 @@ final class Call implements CreateConnectionResponse {
         mConnectTimeMillis = oldConnectTimeMillis;
     }
 
+    /**
+     * @return The ID assigned to this call by the specified mapper, or null if none.
+     */
+    String getIdForMapper(CallIdMapper mapper) {
+        final Object[] slots = mCallIdSlots;
+        for (int i = 0; i < slots.length; i += 2) {
+            if (slots[i] == mapper) {
+                return (String) slots[i + 1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records the ID assigned to this call by the specified mapper.
+     */
+    void setIdForMapper(CallIdMapper mapper, String id) {
+        int freeSlot = -1;
+        for (int i = 0; i < mCallIdSlots.length; i += 2) {
+            if (mCallIdSlots[i] == mapper) {
+                mCallIdSlots[i + 1] = id;
+                return;
+            } else if (freeSlot < 0 && mCallIdSlots[i] == null) {
+                freeSlot = i;
+            }
+        }
+        if (freeSlot < 0) {
+            freeSlot = mCallIdSlots.length;
+            Object[] slots = new Object[mCallIdSlots.length * 2];
+            System.arraycopy(mCallIdSlots, 0, slots, 0, mCallIdSlots.length);
+            mCallIdSlots = slots;
+        }
+        mCallIdSlots[freeSlot] = mapper;
+        mCallIdSlots[freeSlot + 1] = id;
+    }
+
+    /**
+     * Forgets the ID assigned to this call by the specified mapper.
+     *
+     * @return The ID which was removed, or null if the mapper had not assigned one.
+     */
+    String clearIdForMapper(CallIdMapper mapper) {
+        for (int i = 0; i < mCallIdSlots.length; i += 2) {
+            if (mCallIdSlots[i] == mapper) {
+                String id = (String) mCallIdSlots[i + 1];
+                mCallIdSlots[i] = null;
+                mCallIdSlots[i + 1] = null;
+                return id;
+            }
+        }
+        return null;
+    }
+
     void addListener(Listener listener) {
         mListeners.add(listener);
     }
@@ -759,6 +824,7 @@ final class Call implements CreateConnectionResponse {
 
     private void processDirectToVoicemail() {
         if (mDirectToVoicemailQueryPending) {
+            mHandler.removeCallbacks(mDirectToVoicemailRunnable);
             if (mCallerInfo != null && mCallerInfo.shouldSendToVoicemail) {
                 Log.i(this, "Directing call to voicemail: %s.", this);
                 // TODO: Once we move State handling from CallsManager to Call, we
@@ -826,10 +892,16 @@ final class Call implements CreateConnectionResponse {
             // the user or if we want to reject the call.
             mDirectToVoicemailQueryPending = true;
 
-            // Timeout the direct-to-voicemail lookup execution so that we dont wait too long before
-            // showing the user the incoming call screen.
-            mHandler.postDelayed(mDirectToVoicemailRunnable, Timeouts.getDirectToVoicemailMillis(
-                    mContext.getContentResolver()));
+            if (mCallerInfo != null || mCallerInfoLookupNumber == null) {
+                // The lookup started when the call was created has already finished, or there is
+                // no number to look up, so the direct-to-voicemail decision can be made now.
+                processDirectToVoicemail();
+            } else {
+                // Timeout the direct-to-voicemail lookup execution so that we dont wait too long
+                // before showing the user the incoming call screen.
+                mHandler.postDelayed(mDirectToVoicemailRunnable,
+                        Timeouts.getDirectToVoicemailMillis(mContext.getContentResolver()));
+            }
         } else {
             for (Listener l : mListeners) {
                 l.onSuccessfulOutgoingCall(this,
@@ -1276,10 +1348,30 @@ final class Call implements CreateConnectionResponse {
      */
     private void startCallerInfoLookup() {
         String number = mHandle == null ? null : mHandle.getSchemeSpecificPart();
+        String lookupNumber =
+                TextUtils.isEmpty(number) ? null : PhoneNumberUtils.normalizeNumber(number);
+
+        // An incoming call starts its lookup from the number in the intent, and the connection
+        // service later reports the same number again, often formatted differently. Keep the
+        // lookup already made (or in flight) rather than discarding it and starting over.
+        if (lookupNumber != null && lookupNumber.equals(mCallerInfoLookupNumber)) {
+            Log.v(this, "Already looked up information for: %s.", Log.piiHandle(number));
+            return;
+        }
 
         mQueryToken++;  // Updated so that previous queries can no longer set the information.
         mCallerInfo = null;
+        mCallerInfoLookupNumber = lookupNumber;
         if (!TextUtils.isEmpty(number)) {
+            CallerInfo cachedCallerInfo = getCallerInfoCache().get(number);
+            if (cachedCallerInfo != null) {
+                // Apply the cached result right away so that the first update sent for this call
+                // already carries the caller's name.
+                Log.v(this, "Using cached information for: %s.", Log.piiHandle(number));
+                setCallerInfo(cachedCallerInfo, mQueryToken);
+                return;
+            }
+
             Log.v(this, "Looking up information for: %s.", Log.piiHandle(number));
             CallerInfoAsyncQuery.startQuery(
                     mQueryToken,
@@ -1290,6 +1382,24 @@ final class Call implements CreateConnectionResponse {
         }
     }
 
+    private static CallerInfoCache getCallerInfoCache() {
+        return CallsManager.getInstance().getCallerInfoCache();
+    }
+
+    /**
+     * Caches the result of a caller info query and applies it if the specified token matches
+     * that of the last query that was made.
+     *
+     * @param callerInfo The result of the query.
+     * @param token The token used with this query.
+     */
+    private void onCallerInfoQueryComplete(CallerInfo callerInfo, int token) {
+        if (mQueryToken == token && mHandle != null) {
+            getCallerInfoCache().put(mHandle.getSchemeSpecificPart(), callerInfo);
+        }
+        setCallerInfo(callerInfo, token);
+    }
+
     /**
      * Saves the specified caller info if the specified token matches that of the last query
      * that was made.
@@ -1304,7 +1414,17 @@ final class Call implements CreateConnectionResponse {
             mCallerInfo = callerInfo;
             Log.i(this, "CallerInfo received for %s: %s", Log.piiHandle(mHandle), callerInfo);
 
-            if (mCallerInfo.contactDisplayPhotoUri != null) {
+            if (mIsIncoming) {
+                // Decide now whether the call should ring, so the ringer need not wait on it.
+                CallsManager.getInstance().getRingDecisionCache().prefetch(getContactUri());
+            }
+
+            if (mCallerInfo.contactDisplayPhotoUri != null && mCallerInfo.cachedPhoto != null) {
+                // A cached lookup whose photo has already been loaded by an earlier call.
+                for (Listener l : mListeners) {
+                    l.onCallerInfoChanged(this);
+                }
+            } else if (mCallerInfo.contactDisplayPhotoUri != null) {
                 Log.d(this, "Searching person uri %s for call %s",
                         mCallerInfo.contactDisplayPhotoUri, this);
                 ContactsAsyncHelper.startObtainPhotoAsync(
@@ -1339,6 +1459,9 @@ final class Call implements CreateConnectionResponse {
         if (mQueryToken == token) {
             mCallerInfo.cachedPhoto = photo;
             mCallerInfo.cachedPhotoIcon = photoIcon;
+            if (mHandle != null) {
+                getCallerInfoCache().putPhoto(mHandle.getSchemeSpecificPart(), photo, photoIcon);
+            }
 
             for (Listener l : mListeners) {
                 l.onCallerInfoChanged(this);
@@ -1348,7 +1471,7 @@ final class Call implements CreateConnectionResponse {
 
     private void maybeLoadCannedSmsResponses() {
         if (mIsIncoming && isRespondViaSmsCapable() && !mCannedSmsResponsesLoadingStarted) {
-            Log.d(this, "maybeLoadCannedSmsResponses: starting task to load messages");
+            Log.d(this, "maybeLoadCannedSmsResponses: loading messages");
             mCannedSmsResponsesLoadingStarted = true;
             RespondViaSmsManager.getInstance().loadCannedTextMessages(
                     new Response<Void, List<String>>() {
@@ -21,6 +21,8 @@ import android.media.AudioManager;
 import android.telecom.AudioState;
 import android.telecom.CallState;
 
+import android.os.SystemClock;
+
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.Preconditions;
 
@@ -28,36 +30,62 @@ import java.util.Objects;
 
 /**
  * This class manages audio modes, streams and other properties.
+ *
+ * To shorten the time before the user hears an answered call, the audio path can be pre-armed:
+ * focus is taken for the voice call stream and the in-call mode is set as soon as an incoming call
+ * is answered, before the connection service reports it active (see
+ * {@code R.bool.config_speed_up_audio_on_mt_calls}). Outgoing calls already have their audio path
+ * set up from the time they are added, before they start dialing. If a pre-armed call fails
+ * before it becomes active the pre-arm is rolled back, returning audio to whatever the remaining
+ * calls need.
  */
 final class CallAudioManager extends CallsManagerListenerBase
         implements WiredHeadsetManager.Listener {
-    private static final int STREAM_NONE = -1;
-
     private final StatusBarNotifier mStatusBarNotifier;
     private final AudioManager mAudioManager;
     private final BluetoothManager mBluetoothManager;
     private final WiredHeadsetManager mWiredHeadsetManager;
+    private final AppliedAudioState mAppliedState;
 
     private AudioState mAudioState;
-    private int mAudioFocusStreamType;
     private boolean mIsRinging;
     private boolean mIsTonePlaying;
     private boolean mWasSpeakerOn;
     private int mMostRecentlyUsedMode = AudioManager.MODE_IN_CALL;
-    private boolean mSpeedUpAudioForMtCall = false;
     private Context mContext;
-    private String mSubId;
+
+    /** The answered call whose audio path was set up before it became active, if any. */
+    private Call mPreArmedCall;
+    private int mPreArmRollbacks;
+
+    // Codes for the audio path latency stats.
+    private static final int LATENCY_MT_ANSWER_TO_MODE_PRE_ARMED = 0;
+    private static final int LATENCY_MT_ANSWER_TO_MODE = 1;
+    private static final int LATENCY_MT_ANSWER_TO_ACTIVE = 2;
+    private static final int LATENCY_MO_DIALING_TO_ACTIVE = 3;
+    private static final String[] LATENCY_NAMES = { "mt answer->mode(pre-armed)",
+            "mt answer->mode", "mt answer->active", "mo dialing->active" };
+
+    /** Time from answering or dialing to the audio path being ready and the call going active. */
+    private final MessageLatencyStats mAudioPathStats =
+            new MessageLatencyStats(LATENCY_NAMES, false /* recordsWait */);
+
+    /** The answered or dialing call whose audio path latency is being measured, if any. */
+    private Call mMeasuredCall;
+    private long mMeasureStartNanos;
+    private boolean mIsMeasuredCallPreArmed;
+    private boolean mIsMeasuredModeReady;
 
     CallAudioManager(Context context, StatusBarNotifier statusBarNotifier,
             WiredHeadsetManager wiredHeadsetManager) {
         mStatusBarNotifier = statusBarNotifier;
         mAudioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        mAppliedState = new AppliedAudioState(mAudioManager);
         mBluetoothManager = new BluetoothManager(context, this);
         mWiredHeadsetManager = wiredHeadsetManager;
         mWiredHeadsetManager.addListener(this);
 
         saveAudioState(getInitialAudioState(null));
-        mAudioFocusStreamType = STREAM_NONE;
         mContext = context;
     }
 
@@ -80,6 +108,13 @@ final class CallAudioManager extends CallsManagerListenerBase
 
     @Override
     public void onCallRemoved(Call call) {
+        if (call == mMeasuredCall) {
+            mMeasuredCall = null;
+        }
+        if (call == mPreArmedCall) {
+            rollBackPreArm();
+        }
+
         // If we didn't already have focus, there's nothing to do.
         if (hasFocus()) {
             if (CallsManager.getInstance().getCalls().isEmpty()) {
@@ -93,6 +128,9 @@ final class CallAudioManager extends CallsManagerListenerBase
 
     @Override
     public void onCallStateChanged(Call call, int oldState, int newState) {
+        if (newState == CallState.DIALING && !call.isIncoming() && mMeasuredCall == null) {
+            startMeasuring(call, false /* isPreArmed */);
+        }
         onCallUpdated(call);
     }
 
@@ -114,13 +152,12 @@ final class CallAudioManager extends CallsManagerListenerBase
 
         setSystemAudioState(false /* isMute */, route, mAudioState.getSupportedRouteMask());
 
-        if (mContext == null) {
-            Log.d(this, "Speedup Audio Path enhancement: Context is null");
-        } else if (mContext.getResources().getBoolean(
-                com.android.server.telecom.R.bool.config_speed_up_audio_on_mt_calls)) {
-            Log.d(this, "Speedup Audio Path enhancement");
-            mSpeedUpAudioForMtCall = true;
-            mSubId = call.getTargetPhoneAccount().getId();
+        boolean shouldPreArm = mContext != null && mContext.getResources().getBoolean(
+                com.android.server.telecom.R.bool.config_speed_up_audio_on_mt_calls);
+        startMeasuring(call, shouldPreArm);
+        if (shouldPreArm) {
+            Log.d(this, "Pre-arming audio path for answered call %s", call);
+            mPreArmedCall = call;
             if (mIsRinging) {
                 setIsRinging(false);
             } else {
@@ -128,6 +165,7 @@ final class CallAudioManager extends CallsManagerListenerBase
                 setInitialAudioState(call, true /* force */);
             }
         }
+        maybeRecordAudioModeReady();
     }
 
     @Override
@@ -148,6 +186,10 @@ final class CallAudioManager extends CallsManagerListenerBase
       */
     @Override
     public void onWiredHeadsetPluggedInChanged(boolean oldIsPluggedIn, boolean newIsPluggedIn) {
+        // AudioService changes its forced use for the new device on its own, so what we last
+        // applied may no longer hold.
+        mAppliedState.invalidate();
+
         // This can happen even when there are no calls and we don't have focus.
         if (!hasFocus()) {
             return;
@@ -270,6 +312,10 @@ final class CallAudioManager extends CallsManagerListenerBase
      * Updates the audio routing according to the bluetooth state.
      */
     void onBluetoothStateChange(BluetoothManager bluetoothManager) {
+        // Connecting or dropping SCO makes AudioService change speakerphone and routing on its
+        // own, so what we last applied may no longer hold.
+        mAppliedState.invalidate();
+
         // This can happen even when there are no calls and we don't have focus.
         if (!hasFocus()) {
             return;
@@ -303,16 +349,30 @@ final class CallAudioManager extends CallsManagerListenerBase
     }
 
     private void onCallUpdated(Call call) {
-        boolean wasNotVoiceCall = mAudioFocusStreamType != AudioManager.STREAM_VOICE_CALL;
-        updateAudioStreamAndMode();
-        if ((call != null) && (call.getState() == CallState.ACTIVE) &&
-                (call.getTargetPhoneAccount() != null) &&
-                call.getTargetPhoneAccount().getId().equals(mSubId) && mSpeedUpAudioForMtCall) {
-            Log.d(this,"Reset mSpeedUpAudioForMtCall");
-            mSpeedUpAudioForMtCall = false;
+        if (call != null && call == mPreArmedCall) {
+            if (call.getState() == CallState.ACTIVE) {
+                Log.d(this, "Pre-armed call is active");
+                mPreArmedCall = null;
+            } else if (call.getState() == CallState.DISCONNECTED) {
+                rollBackPreArm();
+            }
+        }
+        if (call != null && call == mMeasuredCall) {
+            if (call.getState() == CallState.ACTIVE) {
+                recordLatency(call.isIncoming() ? LATENCY_MT_ANSWER_TO_ACTIVE
+                        : LATENCY_MO_DIALING_TO_ACTIVE);
+                mMeasuredCall = null;
+            } else if (call.getState() == CallState.DISCONNECTED) {
+                mMeasuredCall = null;
+            }
         }
+
+        boolean wasNotVoiceCall =
+                mAppliedState.getFocusStreamType() != AudioManager.STREAM_VOICE_CALL;
+        updateAudioStreamAndMode();
         // If we transition from not voice call to voice call, we need to set an initial state.
-        if (wasNotVoiceCall && mAudioFocusStreamType == AudioManager.STREAM_VOICE_CALL) {
+        if (wasNotVoiceCall
+                && mAppliedState.getFocusStreamType() == AudioManager.STREAM_VOICE_CALL) {
             setInitialAudioState(call, true /* force */);
         }
     }
@@ -333,11 +393,15 @@ final class CallAudioManager extends CallsManagerListenerBase
             return;
         }
         Log.i(this, "changing audio state from %s to %s", oldAudioState, mAudioState);
+        long startNanos = mAppliedState.onTransitionStarted();
+        if (force) {
+            // Re-read what is actually applied rather than trusting what we last set.
+            mAppliedState.invalidate();
+        }
 
         // Mute.
-        if (mAudioState.isMuted() != mAudioManager.isMicrophoneMute()) {
-            Log.i(this, "changing microphone mute state to: %b", mAudioState.isMuted());
-            mAudioManager.setMicrophoneMute(mAudioState.isMuted());
+        if (mAppliedState.setMicrophoneMute(mAudioState.isMuted())) {
+            Log.i(this, "changed microphone mute state to: %b", mAudioState.isMuted());
         }
 
         // Audio route.
@@ -353,6 +417,8 @@ final class CallAudioManager extends CallsManagerListenerBase
             turnOnSpeaker(false);
         }
 
+        mAppliedState.onTransitionFinished(AppliedAudioState.TRANSITION_ROUTE, startNanos);
+
         if (!oldAudioState.equals(mAudioState)) {
             CallsManager.getInstance().onAudioStateChanged(oldAudioState, mAudioState);
             updateAudioForForegroundCall();
@@ -361,9 +427,8 @@ final class CallAudioManager extends CallsManagerListenerBase
 
     private void turnOnSpeaker(boolean on) {
         // Wired headset and earpiece work the same way
-        if (mAudioManager.isSpeakerphoneOn() != on) {
-            Log.i(this, "turning speaker phone %s", on);
-            mAudioManager.setSpeakerphoneOn(on);
+        if (mAppliedState.setSpeakerphoneOn(on)) {
+            Log.i(this, "turned speaker phone %s", on);
         }
     }
 
@@ -384,8 +449,9 @@ final class CallAudioManager extends CallsManagerListenerBase
     private void updateAudioStreamAndMode() {
         Log.i(this, "updateAudioStreamAndMode, mIsRinging: %b, mIsTonePlaying: %b", mIsRinging,
                 mIsTonePlaying);
-        Log.v(this, "updateAudioStreamAndMode, mSpeedUpAudioForMtCall: %b", mSpeedUpAudioForMtCall);
-        if (mIsRinging && !mSpeedUpAudioForMtCall) {
+        Log.v(this, "updateAudioStreamAndMode, mPreArmedCall: %s", mPreArmedCall);
+        long startNanos = mAppliedState.onTransitionStarted();
+        if (mIsRinging && mPreArmedCall == null) {
             requestAudioFocusAndSetMode(AudioManager.STREAM_RING, AudioManager.MODE_RINGTONE);
         } else {
             Call call = getForegroundCall();
@@ -409,20 +475,53 @@ final class CallAudioManager extends CallsManagerListenerBase
                 // focus will be correctly abandoned by the if clause above.
             }
         }
+        mAppliedState.onTransitionFinished(AppliedAudioState.TRANSITION_MODE, startNanos);
+        maybeRecordAudioModeReady();
     }
 
-    private void requestAudioFocusAndSetMode(int stream, int mode) {
-        Log.i(this, "requestAudioFocusAndSetMode, stream: %d -> %d", mAudioFocusStreamType, stream);
-        Preconditions.checkState(stream != STREAM_NONE);
+    /**
+     * Undoes the pre-arming of a call which failed before becoming active, returning the audio
+     * mode to what the remaining calls need, such as ringing for another incoming call.
+     */
+    private void rollBackPreArm() {
+        Log.i(this, "Rolling back pre-armed audio path for %s", mPreArmedCall);
+        mPreArmedCall = null;
+        mPreArmRollbacks++;
+        updateAudioStreamAndMode();
+    }
 
-        // Even if we already have focus, if the stream is different we update audio manager to give
-        // it a hint about the purpose of our focus.
-        if (mAudioFocusStreamType != stream) {
-            Log.v(this, "requesting audio focus for stream: %d", stream);
-            mAudioManager.requestAudioFocusForCall(stream,
-                    AudioManager.AUDIOFOCUS_GAIN_TRANSIENT);
+    private void startMeasuring(Call call, boolean isPreArmed) {
+        mMeasuredCall = call;
+        mMeasureStartNanos = SystemClock.elapsedRealtimeNanos();
+        mIsMeasuredCallPreArmed = isPreArmed;
+        mIsMeasuredModeReady = false;
+    }
+
+    /**
+     * Records the time to the audio path being ready for an answered call, once focus is held
+     * for the voice call stream.
+     */
+    private void maybeRecordAudioModeReady() {
+        if (mMeasuredCall != null && mMeasuredCall.isIncoming() && !mIsMeasuredModeReady
+                && mAppliedState.getFocusStreamType() == AudioManager.STREAM_VOICE_CALL) {
+            mIsMeasuredModeReady = true;
+            recordLatency(mIsMeasuredCallPreArmed ? LATENCY_MT_ANSWER_TO_MODE_PRE_ARMED
+                    : LATENCY_MT_ANSWER_TO_MODE);
         }
-        mAudioFocusStreamType = stream;
+    }
+
+    private void recordLatency(int code) {
+        long micros = (SystemClock.elapsedRealtimeNanos() - mMeasureStartNanos) / 1000;
+        Log.i(this, "%s: %d ms", LATENCY_NAMES[code], micros / 1000);
+        mAudioPathStats.record(code, 0, micros);
+    }
+
+    private void requestAudioFocusAndSetMode(int stream, int mode) {
+        Log.i(this, "requestAudioFocusAndSetMode, stream: %d -> %d",
+                mAppliedState.getFocusStreamType(), stream);
+        Preconditions.checkState(stream != AppliedAudioState.STREAM_NONE);
+
+        mAppliedState.requestFocus(stream);
 
         setMode(mode);
     }
@@ -430,10 +529,8 @@ final class CallAudioManager extends CallsManagerListenerBase
     private void abandonAudioFocus() {
         if (hasFocus()) {
             setMode(AudioManager.MODE_NORMAL);
-            Log.v(this, "abandoning audio focus");
-            mAudioManager.abandonAudioFocusForCall();
-            mAudioFocusStreamType = STREAM_NONE;
-            mSpeedUpAudioForMtCall = false;
+            mAppliedState.abandonFocus();
+            mPreArmedCall = null;
         }
     }
 
@@ -444,15 +541,8 @@ final class CallAudioManager extends CallsManagerListenerBase
      */
     private void setMode(int newMode) {
         Preconditions.checkState(hasFocus());
-        int oldMode = mAudioManager.getMode();
-        Log.v(this, "Request to change audio mode from %d to %d", oldMode, newMode);
 
-        if (oldMode != newMode) {
-            if (oldMode == AudioManager.MODE_IN_CALL && newMode == AudioManager.MODE_RINGTONE) {
-                Log.i(this, "Transition from IN_CALL -> RINGTONE. Resetting to NORMAL first.");
-                mAudioManager.setMode(AudioManager.MODE_NORMAL);
-            }
-            mAudioManager.setMode(newMode);
+        if (mAppliedState.setMode(newMode)) {
             Log.d(this, "SetMode Done");
             mMostRecentlyUsedMode = newMode;
         }
@@ -540,7 +630,7 @@ final class CallAudioManager extends CallsManagerListenerBase
 
         // We ignore any foreground call that is in the ringing state because we deal with ringing
         // calls exclusively through the mIsRinging variable set by {@link Ringer}.
-        if (call != null && call.getState() == CallState.RINGING && !mSpeedUpAudioForMtCall ) {
+        if (call != null && call.getState() == CallState.RINGING && call != mPreArmedCall) {
             call = null;
         }
         return call;
@@ -552,7 +642,7 @@ final class CallAudioManager extends CallsManagerListenerBase
     }
 
     private boolean hasFocus() {
-        return mAudioFocusStreamType != STREAM_NONE;
+        return mAppliedState.hasFocus();
     }
 
     /**
@@ -574,10 +664,20 @@ final class CallAudioManager extends CallsManagerListenerBase
         } else {
             pw.println("mWiredHeadsetManager: null");
         }
-        pw.println("mAudioFocusStreamType: " + mAudioFocusStreamType);
+        pw.println("mAudioFocusStreamType: " + mAppliedState.getFocusStreamType());
         pw.println("mIsRinging: " + mIsRinging);
         pw.println("mIsTonePlaying: " + mIsTonePlaying);
         pw.println("mWasSpeakerOn: " + mWasSpeakerOn);
         pw.println("mMostRecentlyUsedMode: " + mMostRecentlyUsedMode);
+        pw.println("mPreArmedCall: " + mPreArmedCall);
+        pw.println("mPreArmRollbacks: " + mPreArmRollbacks);
+        pw.println("Audio path latency:");
+        pw.increaseIndent();
+        mAudioPathStats.dump(pw);
+        pw.decreaseIndent();
+        pw.println("mAppliedState:");
+        pw.increaseIndent();
+        mAppliedState.dump(pw);
+        pw.decreaseIndent();
     }
 }
@@ -16,13 +16,23 @@
 
 package com.android.server.telecom;
 
-import com.google.common.collect.HashBiMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
-/** Utility to map {@link Call} objects to unique IDs. IDs are generated when a call is added. */
+/**
+ * Utility to map {@link Call} objects to unique IDs. IDs are generated when a call is added.
+ *
+ * The forward (ID to call) mapping is held in a map owned by the mapper. The reverse (call to ID)
+ * mapping is cached on the {@link Call} itself in a small per-mapper slot so that the frequent
+ * {@link #getCallId} lookups made while parceling calls and talking to connection services do
+ * not need to hash the call.
+ */
 class CallIdMapper {
-    private final HashBiMap<String, Call> mCalls = HashBiMap.create();
+    private static final AtomicLong sIdCount = new AtomicLong();
+
+    private final Map<String, Call> mCalls = new HashMap<>();
     private final String mCallIdPrefix;
-    private static int sIdCount;
 
     CallIdMapper(String callIdPrefix) {
         ThreadUtil.checkOnMainThread();
@@ -34,7 +44,7 @@ class CallIdMapper {
 
         // Use the old call's ID for the new call.
         String callId = getCallId(callToReplace);
-        mCalls.put(callId, newCall);
+        addCall(newCall, callId);
     }
 
     void addCall(Call call, String id) {
@@ -42,7 +52,18 @@ class CallIdMapper {
             return;
         }
         ThreadUtil.checkOnMainThread();
-        mCalls.put(id, call);
+
+        // A call has at most one ID per mapper and an ID maps to at most one call; drop any
+        // existing associations for either side before recording the new one.
+        String oldId = call.getIdForMapper(this);
+        if (oldId != null) {
+            mCalls.remove(oldId);
+        }
+        Call oldCall = mCalls.put(id, call);
+        if (oldCall != null && oldCall != call) {
+            oldCall.clearIdForMapper(this);
+        }
+        call.setIdForMapper(this, id);
     }
 
     void addCall(Call call) {
@@ -55,12 +76,18 @@ class CallIdMapper {
             return;
         }
         ThreadUtil.checkOnMainThread();
-        mCalls.inverse().remove(call);
+        String callId = call.clearIdForMapper(this);
+        if (callId != null) {
+            mCalls.remove(callId);
+        }
     }
 
     void removeCall(String callId) {
         ThreadUtil.checkOnMainThread();
-        mCalls.remove(callId);
+        Call call = mCalls.remove(callId);
+        if (call != null) {
+            call.clearIdForMapper(this);
+        }
     }
 
     String getCallId(Call call) {
@@ -68,7 +95,7 @@ class CallIdMapper {
             return null;
         }
         ThreadUtil.checkOnMainThread();
-        return mCalls.inverse().get(call);
+        return call.getIdForMapper(this);
     }
 
     Call getCall(Object objId) {
@@ -86,6 +113,9 @@ class CallIdMapper {
     }
 
     void clear() {
+        for (Call call : mCalls.values()) {
+            call.clearIdForMapper(this);
+        }
         mCalls.clear();
     }
 
@@ -99,7 +129,6 @@ class CallIdMapper {
     }
 
     String getNewId() {
-        sIdCount++;
-        return mCallIdPrefix + sIdCount;
+        return mCallIdPrefix + sIdCount.incrementAndGet();
     }
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.telecom.CallState;
+import android.telephony.TelephonyManager;
+
+import java.util.Collection;
+
+/**
+ * An immutable summary of the calls tracked by {@link CallsManager}. A new instance is built on
+ * the main thread whenever the set of calls or their states change, and published through a
+ * volatile reference so that binder threads can answer read-only queries such as
+ * {@link android.telecom.TelecomManager#isInCall} without touching mutable call state.
+ */
+final class CallStateSnapshot {
+    /** Snapshot with no calls, used until the first call is added. */
+    static final CallStateSnapshot EMPTY =
+            new CallStateSnapshot(new int[0], 0, false, TelephonyManager.CALL_STATE_IDLE);
+
+    private final int[] mCountsByState;
+    private final int mCallCount;
+    private final boolean mHasForegroundCall;
+    private final int mTelephonyCallState;
+
+    private CallStateSnapshot(int[] countsByState, int callCount, boolean hasForegroundCall,
+            int telephonyCallState) {
+        mCountsByState = countsByState;
+        mCallCount = callCount;
+        mHasForegroundCall = hasForegroundCall;
+        mTelephonyCallState = telephonyCallState;
+    }
+
+    /**
+     * Builds a snapshot of the specified calls. Must be called on the main thread.
+     *
+     * @param calls The calls tracked by {@link CallsManager}.
+     * @param foregroundCall The current foreground call, or null.
+     * @param telephonyCallState The {@link TelephonyManager} call state last broadcast.
+     */
+    static CallStateSnapshot create(Collection<Call> calls, Call foregroundCall,
+            int telephonyCallState) {
+        int maxState = -1;
+        for (Call call : calls) {
+            maxState = Math.max(maxState, call.getState());
+        }
+        int[] countsByState = new int[maxState + 1];
+        for (Call call : calls) {
+            int state = call.getState();
+            if (state >= 0) {
+                countsByState[state]++;
+            }
+        }
+        return new CallStateSnapshot(countsByState, calls.size(), foregroundCall != null,
+                telephonyCallState);
+    }
+
+    /**
+     * @param state A {@link CallState} value.
+     * @return The number of calls in the specified state.
+     */
+    int getCount(int state) {
+        return state >= 0 && state < mCountsByState.length ? mCountsByState[state] : 0;
+    }
+
+    /** @return The total number of calls. */
+    int getCallCount() {
+        return mCallCount;
+    }
+
+    /** @return True if any call is ringing. */
+    boolean hasRingingCall() {
+        return getCount(CallState.RINGING) > 0;
+    }
+
+    /** @return True if there is a foreground call. */
+    boolean hasForegroundCall() {
+        return mHasForegroundCall;
+    }
+
+    /** @return The {@link TelephonyManager} call state, e.g. {@code CALL_STATE_OFFHOOK}. */
+    int getTelephonyCallState() {
+        return mTelephonyCallState;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("[calls=").append(mCallCount);
+        for (int state = 0; state < mCountsByState.length; state++) {
+            if (mCountsByState[state] > 0) {
+                sb.append(", ").append(CallState.toString(state)).append('=')
+                        .append(mCountsByState[state]);
+            }
+        }
+        sb.append(", foreground=").append(mHasForegroundCall);
+        sb.append(", telephonyState=").append(mTelephonyCallState);
+        return sb.append(']').toString();
+    }
+}
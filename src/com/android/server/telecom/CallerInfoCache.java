@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.provider.ContactsContract;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.PhoneStateListener;
+import android.telephony.ServiceState;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+
+import com.android.internal.telephony.CallerInfo;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A process-wide LRU cache of {@link CallerInfo} lookups, keyed by the E.164 form of the number
+ * so that differently formatted handles for the same number share an entry. Lets a call from a
+ * number seen recently, or a handle update which does not change the number, get its caller info
+ * synchronously instead of issuing another contacts provider query.
+ *
+ * Entries expire after {@link Timeouts#getCallerInfoCacheTtlMillis} and the whole cache is
+ * dropped whenever the contacts provider reports a change or the foreground user switches. The
+ * cache keeps its own copy of each {@link CallerInfo} and hands out copies, so a call may modify
+ * the instance it gets; a photo loaded for a call is passed back with {@link #putPhoto}.
+ *
+ * The country used to form keys is cached and refreshed when the service state changes, rather
+ * than read from telephony on every lookup.
+ *
+ * Accessed on the main thread; methods are synchronized only so that {@link #dump} may run on a
+ * binder thread.
+ */
+final class CallerInfoCache {
+    private static final int MAX_ENTRIES = 32;
+
+    private static final class Entry {
+        final CallerInfo callerInfo;
+        final long createdMillis;
+
+        Entry(CallerInfo callerInfo, long createdMillis) {
+            this.callerInfo = callerInfo;
+            this.createdMillis = createdMillis;
+        }
+    }
+
+    private final Map<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private final ContentObserver mContactsObserver =
+            new ContentObserver(new Handler(Looper.getMainLooper())) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    Log.v(CallerInfoCache.this, "Contacts changed, clearing cache");
+                    clear();
+                }
+            };
+
+    private final BroadcastReceiver mUserSwitchedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.v(CallerInfoCache.this, "User switched, clearing cache");
+            clear();
+        }
+    };
+
+    private final PhoneStateListener mPhoneStateListener = new PhoneStateListener() {
+        @Override
+        public void onServiceStateChanged(ServiceState serviceState) {
+            synchronized (CallerInfoCache.this) {
+                // Read again on the next lookup; the network country may have changed.
+                mCountryIso = null;
+            }
+        }
+    };
+
+    private final Context mContext;
+    private final TelephonyManager mTelephonyManager;
+    /** Upper case country used to form keys, or null if it has to be read again. */
+    private String mCountryIso;
+    private long mHits;
+    private long mMisses;
+    private long mExpired;
+    private long mClears;
+
+    CallerInfoCache(Context context) {
+        mContext = context;
+        mTelephonyManager = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+        context.getContentResolver().registerContentObserver(
+                ContactsContract.AUTHORITY_URI, true /* notifyForDescendents */, mContactsObserver);
+        context.registerReceiverAsUser(mUserSwitchedReceiver, UserHandle.ALL,
+                new IntentFilter(Intent.ACTION_USER_SWITCHED), null, null);
+        mTelephonyManager.listen(mPhoneStateListener, PhoneStateListener.LISTEN_SERVICE_STATE);
+    }
+
+    /**
+     * @param number The number to look up, in any format.
+     * @return A copy of the cached caller info for the number, or null if there is no fresh entry.
+     */
+    synchronized CallerInfo get(String number) {
+        String key = getKey(number);
+        if (key == null) {
+            return null;
+        }
+        Entry entry = mEntries.get(key);
+        if (entry != null && SystemClock.elapsedRealtime() - entry.createdMillis
+                > Timeouts.getCallerInfoCacheTtlMillis(mContext.getContentResolver())) {
+            mEntries.remove(key);
+            mExpired++;
+            entry = null;
+        }
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return copyOf(entry.callerInfo);
+    }
+
+    /**
+     * Caches the result of a completed caller info query.
+     *
+     * @param number The number which was looked up, in any format.
+     * @param callerInfo The result of the query.
+     */
+    synchronized void put(String number, CallerInfo callerInfo) {
+        String key = getKey(number);
+        // Emergency and voicemail results carry flags which cannot be copied; always query those.
+        if (key != null && callerInfo != null && !callerInfo.isEmergencyNumber()
+                && !callerInfo.isVoiceMailNumber()) {
+            mEntries.put(key, new Entry(copyOf(callerInfo), SystemClock.elapsedRealtime()));
+        }
+    }
+
+    /**
+     * Stores the photo loaded for a cached number so that later calls need not load it again.
+     * Does not extend the lifetime of the entry.
+     *
+     * @param number The number whose photo was loaded, in any format.
+     * @param photo The photo as a drawable.
+     * @param photoIcon The photo as a small icon.
+     */
+    synchronized void putPhoto(String number, Drawable photo, Bitmap photoIcon) {
+        String key = getKey(number);
+        Entry entry = key == null ? null : mEntries.get(key);
+        if (entry != null) {
+            entry.callerInfo.cachedPhoto = photo;
+            entry.callerInfo.cachedPhotoIcon = photoIcon;
+        }
+    }
+
+    /** Drops all cached entries. */
+    synchronized void clear() {
+        mEntries.clear();
+        mClears++;
+    }
+
+    private String getKey(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return null;
+        }
+        String countryIso = getCountryIso();
+        String e164 = TextUtils.isEmpty(countryIso) ? null
+                : PhoneNumberUtils.formatNumberToE164(number, countryIso);
+        return e164 != null ? e164 : PhoneNumberUtils.normalizeNumber(number);
+    }
+
+    private String getCountryIso() {
+        if (mCountryIso == null) {
+            String countryIso = mTelephonyManager.getNetworkCountryIso();
+            if (TextUtils.isEmpty(countryIso)) {
+                countryIso = mTelephonyManager.getSimCountryIso();
+            }
+            mCountryIso = countryIso == null ? "" : countryIso.toUpperCase(Locale.US);
+        }
+        return mCountryIso;
+    }
+
+    private static CallerInfo copyOf(CallerInfo callerInfo) {
+        CallerInfo copy = new CallerInfo();
+        copy.name = callerInfo.name;
+        copy.phoneNumber = callerInfo.phoneNumber;
+        copy.normalizedNumber = callerInfo.normalizedNumber;
+        copy.geoDescription = callerInfo.geoDescription;
+        copy.cnapName = callerInfo.cnapName;
+        copy.numberPresentation = callerInfo.numberPresentation;
+        copy.namePresentation = callerInfo.namePresentation;
+        copy.contactExists = callerInfo.contactExists;
+        copy.phoneLabel = callerInfo.phoneLabel;
+        copy.numberType = callerInfo.numberType;
+        copy.numberLabel = callerInfo.numberLabel;
+        copy.photoResource = callerInfo.photoResource;
+        copy.contactIdOrZero = callerInfo.contactIdOrZero;
+        copy.needUpdate = callerInfo.needUpdate;
+        copy.contactRefUri = callerInfo.contactRefUri;
+        copy.lookupKey = callerInfo.lookupKey;
+        copy.contactDisplayPhotoUri = callerInfo.contactDisplayPhotoUri;
+        copy.contactRingtoneUri = callerInfo.contactRingtoneUri;
+        copy.shouldSendToVoicemail = callerInfo.shouldSendToVoicemail;
+        copy.cachedPhoto = callerInfo.cachedPhoto;
+        copy.cachedPhotoIcon = callerInfo.cachedPhotoIcon;
+        copy.isCachedPhotoCurrent = callerInfo.isCachedPhotoCurrent;
+        return copy;
+    }
+
+    /**
+     * Dumps the state of the {@link CallerInfoCache}.
+     *
+     * @param pw The {@code IndentingPrintWriter} to write the state to.
+     */
+    synchronized void dump(IndentingPrintWriter pw) {
+        long lookups = mHits + mMisses;
+        pw.println("entries: " + mEntries.size() + ", hits: " + mHits + ", misses: " + mMisses
+                + ", hit rate: " + (lookups == 0 ? 0 : mHits * 100 / lookups) + "%"
+                + ", expired: " + mExpired + ", clears: " + mClears);
+    }
+}
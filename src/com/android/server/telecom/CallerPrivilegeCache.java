@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.os.UserHandle;
+import android.os.UserManager;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the privilege decisions {@link TelecomService} makes about its binder callers, so that
+ * repeated calls from the same app cost a map lookup rather than PackageManager and AppOps IPCs.
+ * Decisions are keyed by (uid, package, permission) and the whole cache is dropped whenever a
+ * package is installed, changed or removed, or the set of users changes, since any of these can
+ * change the answer.
+ *
+ * Lookups happen on binder threads, so all state is either immutable or safe for concurrent use.
+ * Invalidating and storing a decision are serialized so that a decision computed before an
+ * invalidation can never be stored after it.
+ */
+final class CallerPrivilegeCache {
+    private static final class Key {
+        final int uid;
+        final String packageName;
+        final String permission;
+
+        Key(int uid, String packageName, String permission) {
+            this.uid = uid;
+            this.packageName = packageName;
+            this.permission = permission;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return uid == other.uid
+                    && (packageName == null ? other.packageName == null
+                            : packageName.equals(other.packageName))
+                    && (permission == null ? other.permission == null
+                            : permission.equals(other.permission));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = uid;
+            result = 31 * result + (packageName == null ? 0 : packageName.hashCode());
+            result = 31 * result + (permission == null ? 0 : permission.hashCode());
+            return result;
+        }
+    }
+
+    private final BroadcastReceiver mInvalidationReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.d(CallerPrivilegeCache.this, "Invalidating on %s", intent.getAction());
+            invalidate();
+        }
+    };
+
+    private final Context mContext;
+    private final PackageManager mPackageManager;
+    private final AppOpsManager mAppOpsManager;
+    private final UserManager mUserManager;
+    private final ConcurrentHashMap<Key, Boolean> mDecisions = new ConcurrentHashMap<>();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mInvalidations = new AtomicLong();
+    /** Guards {@link #mGeneration} together with the writes to the cached state. */
+    private final Object mLock = new Object();
+    /** Bumped on every invalidation so that decisions computed across one are not stored. */
+    private volatile int mGeneration;
+    private volatile List<UserHandle> mUserProfiles;
+    private volatile ComponentName mDefaultPhoneApp;
+
+    CallerPrivilegeCache(Context context) {
+        mContext = context;
+        mPackageManager = context.getPackageManager();
+        mAppOpsManager = (AppOpsManager) context.getSystemService(Context.APP_OPS_SERVICE);
+        mUserManager = (UserManager) context.getSystemService(Context.USER_SERVICE);
+
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiverAsUser(
+                mInvalidationReceiver, UserHandle.ALL, packageFilter, null, null);
+
+        IntentFilter userFilter = new IntentFilter();
+        userFilter.addAction(Intent.ACTION_USER_SWITCHED);
+        userFilter.addAction(Intent.ACTION_USER_ADDED);
+        userFilter.addAction(Intent.ACTION_USER_REMOVED);
+        userFilter.addAction(Intent.ACTION_CONFIGURATION_CHANGED);
+        context.registerReceiverAsUser(
+                mInvalidationReceiver, UserHandle.ALL, userFilter, null, null);
+    }
+
+    /** Drops all cached decisions. */
+    void invalidate() {
+        synchronized (mLock) {
+            mGeneration++;
+            mDecisions.clear();
+            mUserProfiles = null;
+            mDefaultPhoneApp = null;
+        }
+        mInvalidations.incrementAndGet();
+    }
+
+    /**
+     * @param uid The calling uid.
+     * @return True if any package sharing the uid is a system app.
+     */
+    boolean isSystemApp(int uid) {
+        Key key = new Key(uid, null, null);
+        int generation = mGeneration;
+        Boolean cached = lookup(key);
+        if (cached != null) {
+            return cached;
+        }
+        boolean isSystemApp = false;
+        String[] packages = mPackageManager.getPackagesForUid(uid);
+        if (packages != null) {
+            for (String packageName : packages) {
+                if (isPackageSystemApp(packageName)) {
+                    isSystemApp = true;
+                    break;
+                }
+            }
+        }
+        store(key, isSystemApp, generation);
+        return isSystemApp;
+    }
+
+    private boolean isPackageSystemApp(String packageName) {
+        try {
+            ApplicationInfo applicationInfo = mPackageManager.getApplicationInfo(packageName,
+                    PackageManager.GET_META_DATA);
+            if ((applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0) {
+                return true;
+            }
+        } catch (PackageManager.NameNotFoundException e) {
+        }
+        return false;
+    }
+
+    /**
+     * @param uid The calling uid.
+     * @param packageName The package the caller claims to be.
+     * @return True if the package belongs to the uid.
+     */
+    boolean isPackageOwnedBy(int uid, String packageName) {
+        Key key = new Key(uid, packageName, null);
+        int generation = mGeneration;
+        Boolean cached = lookup(key);
+        if (cached != null) {
+            return cached;
+        }
+        boolean isOwned;
+        try {
+            mAppOpsManager.checkPackage(uid, packageName);
+            isOwned = true;
+        } catch (SecurityException e) {
+            isOwned = false;
+        }
+        store(key, isOwned, generation);
+        return isOwned;
+    }
+
+    /**
+     * @param uid The calling uid.
+     * @param pid The calling pid.
+     * @param permission The permission to check.
+     * @return True if the caller holds the permission.
+     */
+    boolean hasPermission(int uid, int pid, String permission) {
+        Key key = new Key(uid, null, permission);
+        int generation = mGeneration;
+        Boolean cached = lookup(key);
+        if (cached != null) {
+            return cached;
+        }
+        boolean isGranted = mContext.checkPermission(permission, pid, uid)
+                == PackageManager.PERMISSION_GRANTED;
+        store(key, isGranted, generation);
+        return isGranted;
+    }
+
+    /**
+     * @return The profiles of the user Telecom is running as.
+     */
+    List<UserHandle> getUserProfiles() {
+        List<UserHandle> userProfiles = mUserProfiles;
+        if (userProfiles == null) {
+            int generation = mGeneration;
+            userProfiles = Collections.unmodifiableList(mUserManager.getUserProfiles());
+            synchronized (mLock) {
+                if (generation == mGeneration) {
+                    mUserProfiles = userProfiles;
+                }
+            }
+        }
+        return userProfiles;
+    }
+
+    /**
+     * @return The component of the default phone app.
+     */
+    ComponentName getDefaultPhoneApp() {
+        ComponentName defaultPhoneApp = mDefaultPhoneApp;
+        if (defaultPhoneApp == null) {
+            int generation = mGeneration;
+            Resources resources = mContext.getResources();
+            defaultPhoneApp = new ComponentName(
+                    resources.getString(R.string.ui_default_package),
+                    resources.getString(R.string.dialer_default_class));
+            synchronized (mLock) {
+                if (generation == mGeneration) {
+                    mDefaultPhoneApp = defaultPhoneApp;
+                }
+            }
+        }
+        return defaultPhoneApp;
+    }
+
+    private void store(Key key, boolean decision, int generation) {
+        synchronized (mLock) {
+            if (generation == mGeneration) {
+                mDecisions.put(key, decision);
+            }
+        }
+    }
+
+    private Boolean lookup(Key key) {
+        Boolean cached = mDecisions.get(key);
+        if (cached != null) {
+            mHits.incrementAndGet();
+        } else {
+            mMisses.incrementAndGet();
+        }
+        return cached;
+    }
+
+    /**
+     * Dumps the state of the {@link CallerPrivilegeCache}.
+     *
+     * @param pw The {@code IndentingPrintWriter} to write the state to.
+     */
+    void dump(IndentingPrintWriter pw) {
+        pw.println("entries: " + mDecisions.size() + ", hits: " + mHits.get() + ", misses: "
+                + mMisses.get() + ", invalidations: " + mInvalidations.get());
+    }
+}
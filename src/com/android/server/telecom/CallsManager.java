@@ -22,6 +22,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 
 import android.provider.CallLog.Calls;
@@ -137,6 +138,9 @@ public final class CallsManager extends Call.ListenerBase {
     private final Context mContext;
     private final PhoneAccountRegistrar mPhoneAccountRegistrar;
     private final MissedCallNotifier mMissedCallNotifier;
+    private final ConnectionAttemptTracker mConnectionAttemptTracker;
+    private final CallerInfoCache mCallerInfoCache;
+    private final RingDecisionCache mRingDecisionCache;
     private final Set<Call> mLocallyDisconnectingCalls = new HashSet<>();
 
     private boolean mCanAddCall = true;
@@ -146,6 +150,12 @@ public final class CallsManager extends Call.ListenerBase {
      * focus and be visible in the in-call UI.
      */
     private Call mForegroundCall;
+
+    /**
+     * Summary of {@link #mCalls} republished after every change, for lock-free reads from binder
+     * threads.
+     */
+    private volatile CallStateSnapshot mCallStateSnapshot = CallStateSnapshot.EMPTY;
     private InCallTonePlayer.Factory mPlayerFactory;
 
     private static final int LCH_PLAY_DTMF = 56;
@@ -201,6 +211,9 @@ public final class CallsManager extends Call.ListenerBase {
         mDtmfLocalTonePlayer = new DtmfLocalTonePlayer(context);
         mConnectionServiceRepository = new ConnectionServiceRepository(mPhoneAccountRegistrar,
                 context);
+        mConnectionAttemptTracker = new ConnectionAttemptTracker(context);
+        mCallerInfoCache = new CallerInfoCache(context);
+        mRingDecisionCache = new RingDecisionCache(context);
 
         mListeners.add(statusBarNotifier);
         mListeners.add(mCallLogManager);
@@ -211,9 +224,11 @@ public final class CallsManager extends Call.ListenerBase {
         mListeners.add(new InCallToneMonitor(playerFactory, this));
         mListeners.add(mCallAudioManager);
         mListeners.add(missedCallNotifier);
+        mListeners.add(mConnectionAttemptTracker);
         mListeners.add(mDtmfLocalTonePlayer);
         mListeners.add(mHeadsetMediaButton);
         mListeners.add(RespondViaSmsManager.getInstance());
+        RespondViaSmsManager.getInstance().initialize(context);
         mListeners.add(mProximitySensorManager);
     }
 
@@ -382,6 +397,18 @@ public final class CallsManager extends Call.ListenerBase {
         return mInCallController;
     }
 
+    ConnectionAttemptTracker getConnectionAttemptTracker() {
+        return mConnectionAttemptTracker;
+    }
+
+    CallerInfoCache getCallerInfoCache() {
+        return mCallerInfoCache;
+    }
+
+    RingDecisionCache getRingDecisionCache() {
+        return mRingDecisionCache;
+    }
+
     boolean hasEmergencyCall() {
         for (Call call : mCalls) {
             if (call.isEmergencyCall()) {
@@ -421,6 +448,9 @@ public final class CallsManager extends Call.ListenerBase {
     void processIncomingCallIntent(PhoneAccountHandle phoneAccountHandle, Bundle extras) {
         Log.d(this, "processIncomingCallIntent");
         Uri handle = extras.getParcelable(TelephonyManager.EXTRA_INCOMING_NUMBER);
+        // Creating the call with the handle starts the caller info lookup right away, so it runs
+        // in parallel with connection creation and is usually done by the time the connection
+        // service confirms the call and the direct-to-voicemail decision is made.
         Call call = new Call(
                 mContext,
                 mConnectionServiceRepository,
@@ -778,11 +808,23 @@ public final class CallsManager extends Call.ListenerBase {
      * @param digit The DTMF digit to play.
      */
     void playDtmfTone(Call call, char digit) {
+        playDtmfTone(call, digit, SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Instructs Telecom to play the specified DTMF tone within the specified call.
+     *
+     * @param digit The DTMF digit to play.
+     * @param requestUptimeMillis When the request reached Telecom, from
+     *         {@link SystemClock#uptimeMillis}, to measure the latency of the local tone.
+     */
+    void playDtmfTone(Call call, char digit, long requestUptimeMillis) {
         if (!mCalls.contains(call)) {
             Log.i(this, "Request to play DTMF in a non-existent call %s", call);
         } else {
+            // Start the local tone first since the user is waiting to hear it.
+            mDtmfLocalTonePlayer.playTone(call, digit, requestUptimeMillis);
             call.playDtmfTone(digit);
-            mDtmfLocalTonePlayer.playTone(call, digit);
         }
     }
 
@@ -1308,7 +1350,17 @@ public final class CallsManager extends Call.ListenerBase {
      * @return the call state currently tracked by {@link PhoneStateBroadcaster}
      */
     int getCallState() {
-        return mPhoneStateBroadcaster.getCallState();
+        return mCallStateSnapshot.getTelephonyCallState();
+    }
+
+    /**
+     * Returns the most recently published summary of the tracked calls. Safe to call from any
+     * thread.
+     *
+     * @return The {@link CallStateSnapshot}.
+     */
+    CallStateSnapshot getCallStateSnapshot() {
+        return mCallStateSnapshot;
     }
 
     /**
@@ -1512,6 +1564,12 @@ public final class CallsManager extends Call.ListenerBase {
     private void updateCallsManagerState() {
         updateForegroundCall();
         updateCanAddCall();
+        updateCallStateSnapshot();
+    }
+
+    private void updateCallStateSnapshot() {
+        mCallStateSnapshot = CallStateSnapshot.create(mCalls, mForegroundCall,
+                mPhoneStateBroadcaster.getCallState());
     }
 
     private boolean isPotentialMMICode(Uri handle) {
@@ -1768,6 +1826,7 @@ public final class CallsManager extends Call.ListenerBase {
             pw.decreaseIndent();
         }
         pw.println("mForegroundCall: " + (mForegroundCall == null ? "none" : mForegroundCall));
+        pw.println("mCallStateSnapshot: " + mCallStateSnapshot);
 
         if (mCallAudioManager != null) {
             pw.println("mCallAudioManager:");
@@ -1776,6 +1835,27 @@ public final class CallsManager extends Call.ListenerBase {
             pw.decreaseIndent();
         }
 
+        if (mRinger != null) {
+            pw.println("mRinger:");
+            pw.increaseIndent();
+            mRinger.dump(pw);
+            pw.decreaseIndent();
+        }
+
+        if (mDtmfLocalTonePlayer != null) {
+            pw.println("mDtmfLocalTonePlayer:");
+            pw.increaseIndent();
+            mDtmfLocalTonePlayer.dump(pw);
+            pw.decreaseIndent();
+        }
+
+        if (mPlayerFactory != null) {
+            pw.println("mPlayerFactory:");
+            pw.increaseIndent();
+            mPlayerFactory.dump(pw);
+            pw.decreaseIndent();
+        }
+
         if (mTtyManager != null) {
             pw.println("mTtyManager:");
             pw.increaseIndent();
@@ -1796,6 +1876,21 @@ public final class CallsManager extends Call.ListenerBase {
             mConnectionServiceRepository.dump(pw);
             pw.decreaseIndent();
         }
+
+        pw.println("mConnectionAttemptTracker:");
+        pw.increaseIndent();
+        mConnectionAttemptTracker.dump(pw);
+        pw.decreaseIndent();
+
+        pw.println("mCallerInfoCache:");
+        pw.increaseIndent();
+        mCallerInfoCache.dump(pw);
+        pw.decreaseIndent();
+
+        pw.println("mRingDecisionCache:");
+        pw.increaseIndent();
+        mRingDecisionCache.dump(pw);
+        pw.decreaseIndent();
     }
 
     private final Handler mHandler = new LchHandler();
@@ -2011,7 +2106,7 @@ public final class CallsManager extends Call.ListenerBase {
             Log.i(this, " Play local call hold reminder tone ");
             mLocalCallReminderTonePlayer =
                     mPlayerFactory.createPlayer(InCallTonePlayer.TONE_HOLD_RECALL);
-            mLocalCallReminderTonePlayer.start();
+            mLocalCallReminderTonePlayer.startTone();
         }
         if (sSupervisoryCallHoldToneConfig.equals("inband")) {
             // if "persist.radio.sch_tone" is set to "inband", play inband supervisory
@@ -2021,7 +2116,7 @@ public final class CallsManager extends Call.ListenerBase {
                 Log.i(this, " startMSimInCallTones: Supervisory call hold tone ");
                 mSupervisoryCallHoldTonePlayer =
                         mPlayerFactory.createPlayer(InCallTonePlayer.TONE_SUPERVISORY_CH);
-                mSupervisoryCallHoldTonePlayer.start();
+                mSupervisoryCallHoldTonePlayer.startTone();
             }
         } else if (sSupervisoryCallHoldToneConfig.equals("dtmf")) {
             Log.i(this, " startMSimInCallTones: Supervisory call hold tone over dtmf ");
@@ -0,0 +1,519 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.telecom.PhoneAccountHandle;
+import android.telephony.ServiceState;
+import android.util.AtomicFile;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records the outcome of each createConnection attempt made by {@link CreateConnectionProcessor}
+ * so that attempt ordering and timeouts can be analyzed. Per account it keeps a rolling success
+ * rate and success latency, persisted across reboots, which {@link CreateConnectionProcessor} uses
+ * to order the attempts it is free to reorder. For calls guarded by a {@link
+ * CreateConnectionTimeout} it also keeps the latest times the connection service took to create
+ * the connection, per account and radio state, from which the timeout derives adaptive lengths.
+ * Owned by {@link CallsManager}; all methods other than {@link #dump} must be called on the main
+ * thread. The stats file is read and written on a background thread.
+ */
+final class ConnectionAttemptTracker extends CallsManagerListenerBase {
+    /** The connection service created the connection. */
+    static final int OUTCOME_SUCCESS = 0;
+    /** The connection service reported a failure, or the bind failed. */
+    static final int OUTCOME_FAILURE = 1;
+    /** The attempt was abandoned, because the call was aborted or a parallel attempt won. */
+    static final int OUTCOME_ABORTED = 2;
+
+    private static final String[] OUTCOME_NAMES = { "success", "failure", "aborted" };
+
+    /** Number of recent attempts kept for {@link #dump}. */
+    private static final int RECENT_ATTEMPT_COUNT = 32;
+
+    private static final String FILE_NAME = "connection-attempt-stats.dat";
+    private static final int FILE_VERSION = 1;
+
+    /** Most accounts tracked; the least used account is dropped beyond this. */
+    private static final int MAX_ACCOUNTS = 32;
+
+    /** Weight of the newest sample in the rolling averages. */
+    private static final float SMOOTHING_FACTOR = 0.2f;
+
+    /** Success rate assumed for an account with no history. */
+    private static final float DEFAULT_SUCCESS_RATE = 0.5f;
+
+    /** Latency assumed for an account with no successful attempts. */
+    private static final float DEFAULT_LATENCY_MILLIS = 5000f;
+
+    /** Delay used to coalesce writes of the per-account stats. */
+    private static final long WRITE_DELAY_MILLIS = 10000L;
+
+    /** Number of connection creation times kept per account and radio state. */
+    private static final int LATENCY_SAMPLE_COUNT = 20;
+
+    /** Fewest samples from which an adaptive timeout is computed. */
+    private static final int MIN_LATENCY_SAMPLES = 5;
+
+    /** Percentile of the recent connection creation times used for the adaptive timeout. */
+    private static final float TIMEOUT_PERCENTILE = 0.95f;
+
+    /**
+     * Radio states tracked separately, indexed by {@link ServiceState#getState}:
+     * in service, out of service, emergency only and power off.
+     */
+    private static final int RADIO_STATE_COUNT = 4;
+
+    /** Rolling statistics for one account. */
+    private static final class AccountStats {
+        int attemptCount;
+        float successRate = DEFAULT_SUCCESS_RATE;
+        float latencyMillis = DEFAULT_LATENCY_MILLIS;
+
+        /** Latest connection creation times, as a ring buffer per radio state. */
+        final long[] latencySamples = new long[RADIO_STATE_COUNT * LATENCY_SAMPLE_COUNT];
+        final int[] latencySampleCounts = new int[RADIO_STATE_COUNT];
+        final int[] latencySampleNext = new int[RADIO_STATE_COUNT];
+    }
+
+    private final Map<PhoneAccountHandle, AccountStats> mAccountStats = new HashMap<>();
+    private final AtomicFile mAtomicFile;
+    private final Handler mHandler = new Handler();
+
+    /** Reads and writes {@link #mAtomicFile} off the main thread. */
+    private final Handler mIoHandler;
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+    /** A running {@link CreateConnectionTimeout} whose connection has not yet been created. */
+    private static final class PendingConnection {
+        final PhoneAccountHandle account;
+        final int radioState;
+        final long startMillis;
+
+        PendingConnection(PhoneAccountHandle account, int radioState, long startMillis) {
+            this.account = account;
+            this.radioState = radioState;
+            this.startMillis = startMillis;
+        }
+    }
+
+    private final Map<Call, PendingConnection> mPendingConnections = new HashMap<>();
+
+    private final Context mContext;
+
+    private final PhoneAccountHandle[] mRecentAccounts =
+            new PhoneAccountHandle[RECENT_ATTEMPT_COUNT];
+    private final int[] mRecentOutcomes = new int[RECENT_ATTEMPT_COUNT];
+    private final long[] mRecentLatencyMillis = new long[RECENT_ATTEMPT_COUNT];
+    private final long[] mRecentTimeMillis = new long[RECENT_ATTEMPT_COUNT];
+    private final boolean[] mRecentIsEmergency = new boolean[RECENT_ATTEMPT_COUNT];
+    private final boolean[] mRecentIsHedged = new boolean[RECENT_ATTEMPT_COUNT];
+    private int mRecentCount;
+    private int mRecentNext;
+
+    ConnectionAttemptTracker(Context context) {
+        mContext = context;
+        mAtomicFile = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+        HandlerThread ioThread = new HandlerThread("connection-attempt-stats");
+        ioThread.start();
+        mIoHandler = new Handler(ioThread.getLooper());
+        mIoHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        });
+    }
+
+    /**
+     * Records the outcome of one attempt.
+     *
+     * @param account The account of the connection service which was asked to create the
+     *         connection.
+     * @param isEmergency Whether the call is an emergency call.
+     * @param isHedged Whether the attempt was started in parallel with an earlier one.
+     * @param outcome One of the {@code OUTCOME_*} constants.
+     * @param latencyMillis Time from starting the attempt to its outcome.
+     */
+    void onAttemptCompleted(PhoneAccountHandle account, boolean isEmergency, boolean isHedged,
+            int outcome, long latencyMillis) {
+        ThreadUtil.checkOnMainThread();
+        Log.d(this, "onAttemptCompleted %s emergency=%b hedged=%b %s %d ms", account,
+                isEmergency, isHedged, OUTCOME_NAMES[outcome], latencyMillis);
+
+        int index = mRecentNext;
+        mRecentAccounts[index] = account;
+        mRecentOutcomes[index] = outcome;
+        mRecentLatencyMillis[index] = latencyMillis;
+        mRecentTimeMillis[index] = System.currentTimeMillis();
+        mRecentIsEmergency[index] = isEmergency;
+        mRecentIsHedged[index] = isHedged;
+        mRecentNext = (index + 1) % RECENT_ATTEMPT_COUNT;
+        if (mRecentCount < RECENT_ATTEMPT_COUNT) {
+            mRecentCount++;
+        }
+
+        if (outcome != OUTCOME_ABORTED && account != null) {
+            updateAccountStats(account, outcome == OUTCOME_SUCCESS, latencyMillis);
+        }
+    }
+
+    /**
+     * Returns how promising the account is as a first attempt: its rolling success rate
+     * discounted by its rolling success latency. Accounts without history get a neutral score.
+     */
+    float getScore(PhoneAccountHandle account) {
+        AccountStats stats = mAccountStats.get(account);
+        float successRate = stats == null ? DEFAULT_SUCCESS_RATE : stats.successRate;
+        float latencyMillis = stats == null ? DEFAULT_LATENCY_MILLIS : stats.latencyMillis;
+        return successRate * 1000f / (1000f + latencyMillis);
+    }
+
+    /**
+     * Starts measuring the time until the connection is created, to be recorded under the same
+     * radio state that {@link CreateConnectionTimeout} used to look up its timeout.
+     *
+     * @param call The call being timed.
+     * @param account The account of the connection service being attempted.
+     * @param radioState The {@link ServiceState#getState} the timeout was started in.
+     */
+    void onTimeoutStarted(Call call, PhoneAccountHandle account, int radioState) {
+        ThreadUtil.checkOnMainThread();
+        mPendingConnections.put(call, new PendingConnection(account, radioState,
+                SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * Records the time the connection service took to create the connection.
+     *
+     * @param call The call being timed.
+     */
+    void onConnectionCreated(Call call) {
+        ThreadUtil.checkOnMainThread();
+        recordPendingConnection(call, "created");
+    }
+
+    /**
+     * Records the time the connection service was given before the timeout fired. Without this
+     * sample an attempt cut short by a too short learned timeout would never raise it.
+     *
+     * @param call The call being timed.
+     */
+    void onTimeoutExpired(Call call) {
+        ThreadUtil.checkOnMainThread();
+        recordPendingConnection(call, "timed out");
+    }
+
+    /**
+     * Stops measuring the time until the connection is created without recording it.
+     *
+     * @param call The call being timed.
+     */
+    void onTimeoutCleared(Call call) {
+        ThreadUtil.checkOnMainThread();
+        mPendingConnections.remove(call);
+    }
+
+    @Override
+    public void onCallRemoved(Call call) {
+        mPendingConnections.remove(call);
+    }
+
+    private void recordPendingConnection(Call call, String reason) {
+        PendingConnection pending = mPendingConnections.remove(call);
+        if (pending != null && pending.account != null) {
+            long latencyMillis = SystemClock.elapsedRealtime() - pending.startMillis;
+            Log.d(this, "recordPendingConnection, %s %s after %d ms in radio state %d",
+                    pending.account, reason, latencyMillis, pending.radioState);
+            addLatencySample(getOrCreateAccountStats(pending.account), pending.radioState,
+                    latencyMillis);
+        }
+    }
+
+    private AccountStats getOrCreateAccountStats(PhoneAccountHandle account) {
+        AccountStats stats = mAccountStats.get(account);
+        if (stats == null) {
+            if (mAccountStats.size() >= MAX_ACCOUNTS) {
+                evictLeastUsedAccount();
+            }
+            stats = new AccountStats();
+            mAccountStats.put(account, stats);
+        }
+        return stats;
+    }
+
+    private void updateAccountStats(PhoneAccountHandle account, boolean isSuccess,
+            long latencyMillis) {
+        AccountStats stats = getOrCreateAccountStats(account);
+        stats.attemptCount++;
+        stats.successRate += SMOOTHING_FACTOR * ((isSuccess ? 1f : 0f) - stats.successRate);
+        if (isSuccess) {
+            stats.latencyMillis += SMOOTHING_FACTOR * (latencyMillis - stats.latencyMillis);
+        }
+
+        mHandler.removeCallbacks(mWriteRunnable);
+        mHandler.postDelayed(mWriteRunnable, WRITE_DELAY_MILLIS);
+    }
+
+    private static void addLatencySample(AccountStats stats, int radioState, long latencyMillis) {
+        if (radioState < 0 || radioState >= RADIO_STATE_COUNT) {
+            return;
+        }
+        int next = stats.latencySampleNext[radioState];
+        stats.latencySamples[radioState * LATENCY_SAMPLE_COUNT + next] = latencyMillis;
+        stats.latencySampleNext[radioState] = (next + 1) % LATENCY_SAMPLE_COUNT;
+        if (stats.latencySampleCounts[radioState] < LATENCY_SAMPLE_COUNT) {
+            stats.latencySampleCounts[radioState]++;
+        }
+    }
+
+    /**
+     * @return The {@link #TIMEOUT_PERCENTILE} of the recent connection creation times for the
+     *         account in the radio state, or -1 if there are too few samples.
+     */
+    private long getLatencyPercentileMillis(PhoneAccountHandle account, int radioState) {
+        AccountStats stats = mAccountStats.get(account);
+        if (stats == null || radioState < 0 || radioState >= RADIO_STATE_COUNT) {
+            return -1;
+        }
+        int count = stats.latencySampleCounts[radioState];
+        if (count < MIN_LATENCY_SAMPLES) {
+            return -1;
+        }
+        long[] samples = Arrays.copyOfRange(stats.latencySamples,
+                radioState * LATENCY_SAMPLE_COUNT, radioState * LATENCY_SAMPLE_COUNT + count);
+        Arrays.sort(samples);
+        int index = (int) Math.ceil(count * TIMEOUT_PERCENTILE) - 1;
+        return samples[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    /**
+     * Returns the timeout for creating a connection through the account in the radio state: a
+     * high percentile of recent connection creation times plus {@link
+     * Timeouts#getCreateConnectionTimeoutMarginMillis}, bounded by {@link
+     * Timeouts#getCreateConnectionTimeoutMinMillis} and the configured timeout.
+     *
+     * @param account The account of the connection service being attempted.
+     * @param radioState The current {@link ServiceState#getState}, as later passed to {@link
+     *         #onTimeoutStarted}.
+     * @param configuredTimeoutMillis The fixed timeout from {@link Timeouts}, used as the upper
+     *         bound and when there is not enough history.
+     */
+    long getAdaptiveTimeoutMillis(PhoneAccountHandle account, int radioState,
+            long configuredTimeoutMillis) {
+        long percentileMillis = getLatencyPercentileMillis(account, radioState);
+        if (percentileMillis < 0 || configuredTimeoutMillis <= 0) {
+            return configuredTimeoutMillis;
+        }
+        long timeoutMillis = percentileMillis
+                + Timeouts.getCreateConnectionTimeoutMarginMillis(mContext.getContentResolver());
+        long minMillis = Timeouts.getCreateConnectionTimeoutMinMillis(
+                mContext.getContentResolver());
+        return Math.min(configuredTimeoutMillis, Math.max(minMillis, timeoutMillis));
+    }
+
+    private void evictLeastUsedAccount() {
+        PhoneAccountHandle leastUsed = null;
+        int leastCount = Integer.MAX_VALUE;
+        for (Map.Entry<PhoneAccountHandle, AccountStats> entry : mAccountStats.entrySet()) {
+            if (entry.getValue().attemptCount < leastCount) {
+                leastCount = entry.getValue().attemptCount;
+                leastUsed = entry.getKey();
+            }
+        }
+        mAccountStats.remove(leastUsed);
+    }
+
+    /** Serializes the stats on the main thread and writes them on the I/O thread. */
+    private void write() {
+        final byte[] data;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(mAccountStats.size());
+            for (Map.Entry<PhoneAccountHandle, AccountStats> entry : mAccountStats.entrySet()) {
+                PhoneAccountHandle account = entry.getKey();
+                AccountStats stats = entry.getValue();
+                out.writeUTF(account.getComponentName().flattenToString());
+                out.writeUTF(account.getId() == null ? "" : account.getId());
+                out.writeInt(account.getUserHandle().getIdentifier());
+                out.writeInt(stats.attemptCount);
+                out.writeFloat(stats.successRate);
+                out.writeFloat(stats.latencyMillis);
+            }
+            out.flush();
+            data = bytes.toByteArray();
+        } catch (IOException e) {
+            Log.e(this, e, "Serializing connection attempt stats");
+            return;
+        }
+
+        mIoHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                writeFile(data);
+            }
+        });
+    }
+
+    /** Called on the I/O thread. */
+    private void writeFile(byte[] data) {
+        final FileOutputStream os;
+        try {
+            os = mAtomicFile.startWrite();
+            boolean success = false;
+            try {
+                os.write(data);
+                success = true;
+            } finally {
+                if (success) {
+                    mAtomicFile.finishWrite(os);
+                } else {
+                    mAtomicFile.failWrite(os);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(this, e, "Writing connection attempt stats");
+        }
+    }
+
+    /** Called on the I/O thread; hands the stats read to the main thread. */
+    private void read() {
+        final DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mAtomicFile.openRead()));
+        } catch (FileNotFoundException ex) {
+            return;
+        }
+
+        final Map<PhoneAccountHandle, AccountStats> accountStats = new HashMap<>();
+        try {
+            if (in.readInt() != FILE_VERSION) {
+                Log.w(this, "Ignoring connection attempt stats with unknown version");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count && i < MAX_ACCOUNTS; i++) {
+                ComponentName componentName = ComponentName.unflattenFromString(in.readUTF());
+                String id = in.readUTF();
+                UserHandle userHandle = new UserHandle(in.readInt());
+                AccountStats stats = new AccountStats();
+                stats.attemptCount = in.readInt();
+                stats.successRate = in.readFloat();
+                stats.latencyMillis = in.readFloat();
+                if (componentName != null) {
+                    accountStats.put(new PhoneAccountHandle(componentName, id, userHandle),
+                            stats);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(this, e, "Reading connection attempt stats");
+            return;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onStatsRead(accountStats);
+            }
+        });
+    }
+
+    /** Merges the persisted stats; accounts with attempts since startup keep their newer stats. */
+    private void onStatsRead(Map<PhoneAccountHandle, AccountStats> accountStats) {
+        for (Map.Entry<PhoneAccountHandle, AccountStats> entry : accountStats.entrySet()) {
+            if (mAccountStats.size() >= MAX_ACCOUNTS) {
+                break;
+            }
+            if (!mAccountStats.containsKey(entry.getKey())) {
+                mAccountStats.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Dumps the state of the {@link ConnectionAttemptTracker}.
+     *
+     * @param pw The {@code IndentingPrintWriter} to write the state to.
+     */
+    void dump(IndentingPrintWriter pw) {
+        pw.println("Accounts:");
+        pw.increaseIndent();
+        for (Map.Entry<PhoneAccountHandle, AccountStats> entry : mAccountStats.entrySet()) {
+            AccountStats stats = entry.getValue();
+            pw.println(entry.getKey() + " attempts=" + stats.attemptCount
+                    + " successRate=" + stats.successRate
+                    + " latencyMillis=" + (long) stats.latencyMillis);
+            pw.increaseIndent();
+            for (int radioState = 0; radioState < RADIO_STATE_COUNT; radioState++) {
+                long percentileMillis = getLatencyPercentileMillis(entry.getKey(), radioState);
+                if (percentileMillis >= 0) {
+                    pw.println("radioState=" + radioState
+                            + " samples=" + stats.latencySampleCounts[radioState]
+                            + " p95=" + percentileMillis
+                            + " learnedTimeoutMillis=" + getAdaptiveTimeoutMillis(
+                                    entry.getKey(), radioState, Long.MAX_VALUE));
+                }
+            }
+            pw.decreaseIndent();
+        }
+        pw.decreaseIndent();
+
+        pw.println("Recent attempts:");
+        pw.increaseIndent();
+        int start = (mRecentNext - mRecentCount + RECENT_ATTEMPT_COUNT) % RECENT_ATTEMPT_COUNT;
+        for (int i = 0; i < mRecentCount; i++) {
+            int index = (start + i) % RECENT_ATTEMPT_COUNT;
+            pw.println(mRecentTimeMillis[index] + " " + mRecentAccounts[index]
+                    + " " + OUTCOME_NAMES[mRecentOutcomes[index]]
+                    + " " + mRecentLatencyMillis[index] + "ms"
+                    + (mRecentIsEmergency[index] ? " emergency" : "")
+                    + (mRecentIsHedged[index] ? " hedged" : ""));
+        }
+        pw.decreaseIndent();
+    }
+}
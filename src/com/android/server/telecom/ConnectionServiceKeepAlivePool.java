@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Configuration;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the most recently idled connection service bindings alive for a short while so that
+ * back-to-back calls through the same service (redial, adding a conference participant) do not
+ * pay for a full rebind. Idle bindings are released after {@link
+ * Timeouts#getConnectionServiceKeepAliveMillis}, when more than {@link
+ * Timeouts#getConnectionServiceKeepAliveCount} are idle, on memory pressure and when the owning
+ * package changes.
+ *
+ * All methods must be called on the main thread.
+ */
+final class ConnectionServiceKeepAlivePool implements ServiceBinder.KeepAlive {
+    /** Idle bindings, least recently idled first. */
+    private final List<ServiceBinder<?>> mIdleBindings = new ArrayList<>();
+
+    /** Elapsed realtime at which each entry of {@link #mIdleBindings} went idle. */
+    private final List<Long> mIdleSinceMillis = new ArrayList<>();
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler();
+
+    private final Runnable mEvictExpiredRunnable = new Runnable() {
+        @Override
+        public void run() {
+            evictExpired();
+        }
+    };
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            String packageName = data == null ? null : data.getSchemeSpecificPart();
+            if (packageName != null) {
+                Log.d(ConnectionServiceKeepAlivePool.this, "Package %s changed", packageName);
+                evictPackage(packageName);
+            }
+        }
+    };
+
+    private final ComponentCallbacks2 mMemoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_RUNNING_LOW) {
+                Log.d(ConnectionServiceKeepAlivePool.this, "onTrimMemory %d", level);
+                evictAll();
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            evictAll();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    };
+
+    /** Number of times a call reused a binding held by the pool. */
+    private int mReuseCount;
+
+    /** Number of times a call needed a binding the pool was not holding. */
+    private int mMissCount;
+
+    /** Sum of the original bind latency of every reused binding. */
+    private long mSavedBindMillis;
+
+    ConnectionServiceKeepAlivePool(Context context) {
+        mContext = context;
+
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiver(mPackageReceiver, packageFilter);
+        mContext.registerComponentCallbacks(mMemoryCallbacks);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean retainIdleBinding(ServiceBinder<?> serviceBinder) {
+        ThreadUtil.checkOnMainThread();
+        long keepAliveMillis = Timeouts.getConnectionServiceKeepAliveMillis(
+                mContext.getContentResolver());
+        int maxIdle = Timeouts.getConnectionServiceKeepAliveCount(mContext.getContentResolver());
+        if (keepAliveMillis <= 0 || maxIdle <= 0) {
+            return false;
+        }
+
+        removeIdleBinding(serviceBinder);
+        mIdleBindings.add(serviceBinder);
+        mIdleSinceMillis.add(SystemClock.elapsedRealtime());
+        Log.d(this, "Keeping %s alive for %d ms", serviceBinder.getComponentName(),
+                keepAliveMillis);
+
+        while (mIdleBindings.size() > maxIdle) {
+            evictAt(0);
+        }
+        scheduleEviction(keepAliveMillis);
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onBindingInUse(ServiceBinder<?> serviceBinder) {
+        ThreadUtil.checkOnMainThread();
+        // The service may have died while idle, in which case it must be bound from scratch.
+        if (removeIdleBinding(serviceBinder) && serviceBinder.isBound()) {
+            mReuseCount++;
+            mSavedBindMillis += serviceBinder.getLastBindLatencyMillis();
+            Log.d(this, "Reusing idle binding to %s", serviceBinder.getComponentName());
+        } else {
+            mMissCount++;
+        }
+    }
+
+    private boolean removeIdleBinding(ServiceBinder<?> serviceBinder) {
+        int index = mIdleBindings.indexOf(serviceBinder);
+        if (index < 0) {
+            return false;
+        }
+        mIdleBindings.remove(index);
+        mIdleSinceMillis.remove(index);
+        return true;
+    }
+
+    private void evictAt(int index) {
+        ServiceBinder<?> serviceBinder = mIdleBindings.remove(index);
+        mIdleSinceMillis.remove(index);
+        // A call may have been associated since; only unbind if the binding is still idle.
+        if (serviceBinder.getAssociatedCallCount() == 0 && serviceBinder.isBound()) {
+            Log.d(this, "Releasing idle binding to %s", serviceBinder.getComponentName());
+            serviceBinder.unbind();
+        }
+    }
+
+    private void scheduleEviction(long keepAliveMillis) {
+        mHandler.removeCallbacks(mEvictExpiredRunnable);
+        if (!mIdleBindings.isEmpty()) {
+            long nextExpiry = mIdleSinceMillis.get(0) + keepAliveMillis;
+            mHandler.postDelayed(mEvictExpiredRunnable,
+                    Math.max(0, nextExpiry - SystemClock.elapsedRealtime()));
+        }
+    }
+
+    private void evictExpired() {
+        long keepAliveMillis = Timeouts.getConnectionServiceKeepAliveMillis(
+                mContext.getContentResolver());
+        long now = SystemClock.elapsedRealtime();
+        while (!mIdleBindings.isEmpty() && now - mIdleSinceMillis.get(0) >= keepAliveMillis) {
+            evictAt(0);
+        }
+        scheduleEviction(keepAliveMillis);
+    }
+
+    private void evictPackage(String packageName) {
+        for (int i = mIdleBindings.size() - 1; i >= 0; i--) {
+            if (packageName.equals(mIdleBindings.get(i).getComponentName().getPackageName())) {
+                evictAt(i);
+            }
+        }
+    }
+
+    private void evictAll() {
+        while (!mIdleBindings.isEmpty()) {
+            evictAt(0);
+        }
+        mHandler.removeCallbacks(mEvictExpiredRunnable);
+    }
+
+    /**
+     * Dumps the state of the {@link ConnectionServiceKeepAlivePool}.
+     *
+     * @param pw The {@code IndentingPrintWriter} to write the state to.
+     */
+    void dump(IndentingPrintWriter pw) {
+        int total = mReuseCount + mMissCount;
+        pw.println("reuse=" + mReuseCount + " miss=" + mMissCount
+                + " reuseRate=" + (total == 0 ? 0 : (100 * mReuseCount / total)) + "%"
+                + " savedBindMillis=" + mSavedBindMillis);
+        pw.println("idle:");
+        pw.increaseIndent();
+        long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < mIdleBindings.size(); i++) {
+            pw.println(mIdleBindings.get(i).getComponentName() + " idle for "
+                    + (now - mIdleSinceMillis.get(i)) + " ms");
+        }
+        pw.decreaseIndent();
+    }
+}
@@ -34,10 +34,12 @@ final class ConnectionServiceRepository
             new HashMap<>();
     private final PhoneAccountRegistrar mPhoneAccountRegistrar;
     private final Context mContext;
+    private final ConnectionServiceKeepAlivePool mKeepAlivePool;
 
     ConnectionServiceRepository(PhoneAccountRegistrar phoneAccountRegistrar, Context context) {
         mPhoneAccountRegistrar = phoneAccountRegistrar;
         mContext = context;
+        mKeepAlivePool = new ConnectionServiceKeepAlivePool(context);
     }
 
     ConnectionServiceWrapper getService(ComponentName componentName, UserHandle userHandle) {
@@ -51,6 +53,7 @@ final class ConnectionServiceRepository
                     mContext,
                     userHandle);
             service.addListener(this);
+            service.setKeepAlive(mKeepAlivePool);
             mServiceCache.put(cacheKey, service);
         }
         return service;
@@ -77,7 +80,20 @@ final class ConnectionServiceRepository
         for (Pair<ComponentName, UserHandle> cacheKey : mServiceCache.keySet()) {
             ComponentName componentName = cacheKey.first;
             pw.println(componentName);
+            pw.increaseIndent();
+            mServiceCache.get(cacheKey).dump(pw);
+            pw.decreaseIndent();
         }
         pw.decreaseIndent();
+
+        pw.println("mKeepAlivePool:");
+        pw.increaseIndent();
+        mKeepAlivePool.dump(pw);
+        pw.decreaseIndent();
+
+        pw.println("Bind stats:");
+        pw.increaseIndent();
+        ServiceBindTracker.getInstance().dump(pw);
+        pw.decreaseIndent();
     }
 }
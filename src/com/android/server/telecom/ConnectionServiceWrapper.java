@@ -24,6 +24,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.telecom.AudioState;
 import android.telecom.Connection;
@@ -44,6 +45,7 @@ import com.android.internal.telecom.IConnectionService;
 import com.android.internal.telecom.IConnectionServiceAdapter;
 import com.android.internal.telecom.IVideoProvider;
 import com.android.internal.telecom.RemoteServiceCallback;
+import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.Preconditions;
 
 import java.util.ArrayList;
@@ -88,7 +90,61 @@ final class ConnectionServiceWrapper extends ServiceBinder<IConnectionService> {
     private static final int MSG_SET_PHONE_ACCOUNT = 25;
     private static final int MSG_SET_CALL_SUBSTATE = 26;
 
+    /** Names of the {@code MSG_*} codes above, indexed by code, for {@link #dump}. */
+    private static final String[] MESSAGE_NAMES = {
+            null,
+            "HANDLE_CREATE_CONNECTION_COMPLETE",
+            "SET_ACTIVE",
+            "SET_RINGING",
+            "SET_DIALING",
+            "SET_DISCONNECTED",
+            "SET_ON_HOLD",
+            "SET_RINGBACK_REQUESTED",
+            "SET_CONNECTION_CAPABILITIES",
+            "SET_IS_CONFERENCED",
+            "ADD_CONFERENCE_CALL",
+            "REMOVE_CALL",
+            "ON_POST_DIAL_WAIT",
+            "QUERY_REMOTE_CALL_SERVICES",
+            "SET_VIDEO_PROVIDER",
+            "SET_IS_VOIP_AUDIO_MODE",
+            "SET_STATUS_HINTS",
+            "SET_ADDRESS",
+            "SET_CALLER_DISPLAY_NAME",
+            "SET_VIDEO_STATE",
+            "SET_CONFERENCEABLE_CONNECTIONS",
+            "ADD_EXISTING_CONNECTION",
+            "ON_POST_DIAL_CHAR",
+            "SET_EXTRAS",
+            "SET_DISCONNECTED_WITH_SUPP_NOTIFICATION",
+            "SET_PHONE_ACCOUNT",
+            "SET_CALL_SUBSTATE",
+    };
+
+    /** Per message type queue wait and handling time for messages from this connection service. */
+    private final MessageLatencyStats mMessageStats = new MessageLatencyStats(MESSAGE_NAMES);
+
     private final Handler mHandler = new Handler() {
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            // Called on the binder thread of the adapter method. Stamp the time the message was
+            // queued, in microseconds, into arg2, which no adapter message otherwise uses. The
+            // stamp wraps after about 35 minutes; the int subtraction in dispatchMessage still
+            // gives the right wait across the wrap.
+            msg.arg2 = (int) (SystemClock.elapsedRealtimeNanos() / 1000);
+            return super.sendMessageAtTime(msg, uptimeMillis);
+        }
+
+        @Override
+        public void dispatchMessage(Message msg) {
+            final long startNanos = SystemClock.elapsedRealtimeNanos();
+            final int waitMicros = (int) (startNanos / 1000) - msg.arg2;
+            final int what = msg.what;
+            super.dispatchMessage(msg);
+            mMessageStats.record(what, waitMicros,
+                    (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000);
+        }
+
         @Override
         public void handleMessage(Message msg) {
             Call call;
@@ -727,6 +783,14 @@ final class ConnectionServiceWrapper extends ServiceBinder<IConnectionService> {
     private IConnectionService mServiceInterface;
     private final ConnectionServiceRepository mConnectionServiceRepository;
     private final PhoneAccountRegistrar mPhoneAccountRegistrar;
+    private final Context mContext;
+
+    /**
+     * SIM subscription connection services offered to this service as remote connection services,
+     * or null if they need to be looked up again. Cleared from whichever thread changes the
+     * registered phone accounts.
+     */
+    private volatile List<ConnectionServiceWrapper> mSimServices;
 
     /**
      * Creates a connection service.
@@ -748,8 +812,19 @@ final class ConnectionServiceWrapper extends ServiceBinder<IConnectionService> {
         phoneAccountRegistrar.addListener(new PhoneAccountRegistrar.Listener() {
             // TODO -- Upon changes to PhoneAccountRegistrar, need to re-wire connections
             // To do this, we must proxy remote ConnectionService objects
+
+            @Override
+            public void onAccountsChanged(PhoneAccountRegistrar registrar) {
+                mSimServices = null;
+            }
+
+            @Override
+            public void onSimCallManagerChanged(PhoneAccountRegistrar registrar) {
+                mSimServices = null;
+            }
         });
         mPhoneAccountRegistrar = phoneAccountRegistrar;
+        mContext = context;
     }
 
     /** See {@link IConnectionService#addConnectionServiceAdapter}. */
@@ -767,6 +842,17 @@ final class ConnectionServiceWrapper extends ServiceBinder<IConnectionService> {
      * Creates a new connection for a new outgoing call or to attach to an existing incoming call.
      */
     void createConnection(final Call call, final CreateConnectionResponse response) {
+        createConnection(call, response, call.getConnectionManagerPhoneAccount(),
+                call.getTargetPhoneAccount());
+    }
+
+    /**
+     * Creates a new connection using the specified accounts rather than those currently set on the
+     * call. Used when the same call is being attempted through more than one connection service.
+     */
+    void createConnection(final Call call, final CreateConnectionResponse response,
+            final PhoneAccountHandle connectionManagerPhoneAccount,
+            final PhoneAccountHandle targetPhoneAccount) {
         Log.d(this, "createConnection(%s) via %s.", call, getComponentName());
         BindCallback callback = new BindCallback() {
             @Override
@@ -789,10 +875,10 @@ final class ConnectionServiceWrapper extends ServiceBinder<IConnectionService> {
 
                 try {
                     mServiceInterface.createConnection(
-                            call.getConnectionManagerPhoneAccount(),
+                            connectionManagerPhoneAccount,
                             callId,
                             new ConnectionRequest(
-                                    call.getTargetPhoneAccount(),
+                                    targetPhoneAccount,
                                     call.getHandle(),
                                     extras,
                                     call.getVideoState()),
@@ -812,7 +898,8 @@ final class ConnectionServiceWrapper extends ServiceBinder<IConnectionService> {
             }
         };
 
-        mBinder.bind(callback);
+        // Never refuse to bind for an emergency call, however badly the service has behaved.
+        mBinder.bind(callback, call.isEmergencyCall());
     }
 
     /** @see ConnectionService#abort(String) */
@@ -1122,6 +1209,18 @@ final class ConnectionServiceWrapper extends ServiceBinder<IConnectionService> {
         mCallIdMapper.clear();
     }
 
+    /**
+     * Dumps the state of this {@link ConnectionServiceWrapper}.
+     *
+     * @param pw The {@code IndentingPrintWriter} to write the state to.
+     */
+    void dump(IndentingPrintWriter pw) {
+        pw.println("Adapter messages:");
+        pw.increaseIndent();
+        mMessageStats.dump(pw);
+        pw.decreaseIndent();
+    }
+
     private void logIncoming(String msg, Object... params) {
         Log.d(this, "ConnectionService -> Telecom: " + msg, params);
     }
@@ -1141,37 +1240,46 @@ final class ConnectionServiceWrapper extends ServiceBinder<IConnectionService> {
             return;
         }
 
-        // Make a list of ConnectionServices that are listed as being associated with SIM accounts
-        final Set<ConnectionServiceWrapper> simServices = Collections.newSetFromMap(
-                new ConcurrentHashMap<ConnectionServiceWrapper, Boolean>(8, 0.9f, 1));
-        for (PhoneAccountHandle handle : mPhoneAccountRegistrar.getCallCapablePhoneAccounts()) {
-            PhoneAccount account = mPhoneAccountRegistrar.getPhoneAccount(handle);
-            if ((account.getCapabilities() & PhoneAccount.CAPABILITY_SIM_SUBSCRIPTION) != 0) {
-                ConnectionServiceWrapper service =
-                        mConnectionServiceRepository.getService(handle.getComponentName(),
-                                handle.getUserHandle());
-                if (service != null) {
-                    simServices.add(service);
-                }
-            }
+        final List<ConnectionServiceWrapper> simServices = getSimServices();
+        Log.v(this, "queryRemoteConnectionServices, simServices = %s", simServices);
+        if (simServices.isEmpty()) {
+            noRemoteServices(callback);
+            return;
         }
 
+        // Bind to all SIM services at once and answer as soon as every bind has completed or the
+        // deadline passes, whichever is first. Services which fail or are still binding at the
+        // deadline are left out of the answer rather than failing the whole request.
         final List<ComponentName> simServiceComponentNames = new ArrayList<>();
         final List<IBinder> simServiceBinders = new ArrayList<>();
+        final int[] pendingCount = { simServices.size() };
+        final boolean[] isComplete = { false };
 
-        Log.v(this, "queryRemoteConnectionServices, simServices = %s", simServices);
-
-        for (ConnectionServiceWrapper simService : simServices) {
-            if (simService == this) {
-                // Only happens in the unlikely case that a SIM service is also a SIM call manager
-                continue;
+        final Runnable timeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (!isComplete[0]) {
+                    Log.w(ConnectionServiceWrapper.this,
+                            "queryRemoteConnectionServices timed out, %d of %d services bound",
+                            simServiceComponentNames.size(), simServices.size());
+                    isComplete[0] = true;
+                    setRemoteServices(callback, simServiceComponentNames, simServiceBinders);
+                }
             }
+        };
+        mHandler.postDelayed(timeoutRunnable,
+                Timeouts.getRemoteConnectionServicesTimeoutMillis(
+                        mContext.getContentResolver()));
 
+        for (ConnectionServiceWrapper simService : simServices) {
             final ConnectionServiceWrapper currentSimService = simService;
 
             currentSimService.mBinder.bind(new BindCallback() {
                 @Override
                 public void onSuccess() {
+                    if (isComplete[0]) {
+                        return;
+                    }
                     Log.d(this, "Adding simService %s", currentSimService.getComponentName());
                     simServiceComponentNames.add(currentSimService.getComponentName());
                     simServiceBinders.add(currentSimService.mServiceInterface.asBinder());
@@ -1180,14 +1288,17 @@ final class ConnectionServiceWrapper extends ServiceBinder<IConnectionService> {
 
                 @Override
                 public void onFailure() {
+                    if (isComplete[0]) {
+                        return;
+                    }
                     Log.d(this, "Failed simService %s", currentSimService.getComponentName());
-                    // We know maybeComplete() will always be a no-op from now on, so go ahead and
-                    // signal failure of the entire request
-                    noRemoteServices(callback);
+                    maybeComplete();
                 }
 
                 private void maybeComplete() {
-                    if (simServiceComponentNames.size() == simServices.size()) {
+                    if (--pendingCount[0] == 0) {
+                        isComplete[0] = true;
+                        mHandler.removeCallbacks(timeoutRunnable);
                         setRemoteServices(callback, simServiceComponentNames, simServiceBinders);
                     }
                 }
@@ -1195,6 +1306,34 @@ final class ConnectionServiceWrapper extends ServiceBinder<IConnectionService> {
         }
     }
 
+    /**
+     * Returns the connection services which are associated with SIM accounts, excluding this one.
+     * The list is cached until the registered phone accounts or the SIM call manager change.
+     */
+    private List<ConnectionServiceWrapper> getSimServices() {
+        List<ConnectionServiceWrapper> simServices = mSimServices;
+        if (simServices != null) {
+            return simServices;
+        }
+
+        simServices = new ArrayList<>();
+        for (PhoneAccountHandle handle : mPhoneAccountRegistrar.getCallCapablePhoneAccounts()) {
+            PhoneAccount account = mPhoneAccountRegistrar.getPhoneAccount(handle);
+            if ((account.getCapabilities() & PhoneAccount.CAPABILITY_SIM_SUBSCRIPTION) != 0) {
+                ConnectionServiceWrapper service =
+                        mConnectionServiceRepository.getService(handle.getComponentName(),
+                                handle.getUserHandle());
+                // Skip the unlikely case that a SIM service is also a SIM call manager.
+                if (service != null && service != this && !simServices.contains(service)) {
+                    simServices.add(service);
+                }
+            }
+        }
+        simServices = Collections.unmodifiableList(simServices);
+        mSimServices = simServices;
+        return simServices;
+    }
+
     private void setRemoteServices(
             RemoteServiceCallback callback,
             List<ComponentName> componentNames,
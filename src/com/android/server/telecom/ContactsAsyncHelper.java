@@ -19,6 +19,7 @@ package com.android.server.telecom;
 import android.app.Notification;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
@@ -26,11 +27,16 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.util.LruCache;
 
 // TODO: Needed for move to system service: import com.android.internal.R;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Helper class for loading contacts photo asynchronously.
@@ -60,18 +66,21 @@ public final class ContactsAsyncHelper {
     // constants
     private static final int EVENT_LOAD_IMAGE = 1;
 
+    /** Upper bound on the memory held by decoded photos kept for reuse. */
+    private static final int PHOTO_CACHE_MAX_BYTES = 1024 * 1024;
+
     private static final Handler sResultHandler = new Handler(Looper.getMainLooper()) {
         /** Called when loading is done. */
         @Override
         public void handleMessage(Message msg) {
-            WorkerArgs args = (WorkerArgs) msg.obj;
+            LoadRequest request = (LoadRequest) msg.obj;
             switch (msg.arg1) {
                 case EVENT_LOAD_IMAGE:
-                    if (args.listener != null) {
-                        Log.d(this, "Notifying listener: " + args.listener.toString() +
-                                " image: " + args.displayPhotoUri + " completed");
-                        args.listener.onImageLoadComplete(msg.what, args.photo, args.photoIcon,
-                                args.cookie);
+                    if (sPendingRequests.get(request.displayPhotoUri) == request) {
+                        sPendingRequests.remove(request.displayPhotoUri);
+                    }
+                    for (WorkerArgs args : request.waiters) {
+                        notifyListener(args, request.photo, request.photoIcon);
                     }
                     break;
                 default:
@@ -88,15 +97,61 @@ public final class ContactsAsyncHelper {
         sThreadHandler = new WorkerHandler(thread.getLooper());
     }
 
+    /**
+     * Decoded photos keyed by display photo URI, bounded by the bytes held in their bitmaps.
+     * Filled on the worker thread and read on the main thread; {@link LruCache} is thread safe.
+     */
+    private static final LruCache<Uri, PhotoEntry> sPhotoCache =
+            new LruCache<Uri, PhotoEntry>(PHOTO_CACHE_MAX_BYTES) {
+                @Override
+                protected int sizeOf(Uri key, PhotoEntry value) {
+                    return value.byteCount;
+                }
+            };
+
+    /**
+     * Loads in progress keyed by display photo URI, so that concurrent requests for the same
+     * photo share a single decode. Accessed only on the main thread.
+     */
+    private static final Map<Uri, LoadRequest> sPendingRequests = new HashMap<>();
+
     private ContactsAsyncHelper() {}
 
+    /** A single requester's callback and arguments. */
     private static final class WorkerArgs {
+        public int token;
+        public Uri displayPhotoUri;
+        public Object cookie;
+        public OnImageLoadCompleteListener listener;
+    }
+
+    /** A decode of one photo, shared by every requester waiting on it. */
+    private static final class LoadRequest {
         public Context context;
         public Uri displayPhotoUri;
         public Drawable photo;
         public Bitmap photoIcon;
-        public Object cookie;
-        public OnImageLoadCompleteListener listener;
+        public final List<WorkerArgs> waiters = new ArrayList<>(1);
+    }
+
+    private static final class PhotoEntry {
+        final Drawable photo;
+        final Bitmap photoIcon;
+        final int byteCount;
+
+        PhotoEntry(Drawable photo, Bitmap photoIcon) {
+            this.photo = photo;
+            this.photoIcon = photoIcon;
+            int byteCount = 0;
+            if (photo instanceof BitmapDrawable) {
+                byteCount += ((BitmapDrawable) photo).getBitmap().getByteCount();
+            }
+            if (photoIcon != null && (!(photo instanceof BitmapDrawable)
+                    || ((BitmapDrawable) photo).getBitmap() != photoIcon)) {
+                byteCount += photoIcon.getByteCount();
+            }
+            this.byteCount = Math.max(1, byteCount);
+        }
     }
 
     /**
@@ -110,44 +165,29 @@ public final class ContactsAsyncHelper {
 
         @Override
         public void handleMessage(Message msg) {
-            WorkerArgs args = (WorkerArgs) msg.obj;
+            LoadRequest request = (LoadRequest) msg.obj;
 
             switch (msg.arg1) {
                 case EVENT_LOAD_IMAGE:
-                    InputStream inputStream = null;
-                    try {
-                        try {
-                            inputStream = args.context.getContentResolver()
-                                    .openInputStream(args.displayPhotoUri);
-                        } catch (Exception e) {
-                            Log.e(this, e, "Error opening photo input stream");
-                        }
-
-                        if (inputStream != null) {
-                            args.photo = Drawable.createFromStream(inputStream,
-                                    args.displayPhotoUri.toString());
-
-                            // This assumes Drawable coming from contact database is usually
-                            // BitmapDrawable and thus we can have (down)scaled version of it.
-                            args.photoIcon = getPhotoIconWhenAppropriate(args.context, args.photo);
-
-                            Log.d(this, "Loading image: " + msg.arg1 +
-                                    " token: " + msg.what + " image URI: " + args.displayPhotoUri);
-                        } else {
-                            args.photo = null;
-                            args.photoIcon = null;
-                            Log.d(this, "Problem with image: " + msg.arg1 +
-                                    " token: " + msg.what + " image URI: " + args.displayPhotoUri +
-                                    ", using default image.");
-                        }
-                    } finally {
-                        if (inputStream != null) {
-                            try {
-                                inputStream.close();
-                            } catch (IOException e) {
-                                Log.e(this, e, "Unable to close input stream.");
-                            }
-                        }
+                    int iconSize = request.context.getResources()
+                            .getDimensionPixelSize(R.dimen.notification_icon_size);
+                    Bitmap bitmap = decodeSampledBitmap(request.context, request.displayPhotoUri,
+                            iconSize);
+                    if (bitmap != null) {
+                        request.photo = new BitmapDrawable(
+                                request.context.getResources(), bitmap);
+                        request.photoIcon = getPhotoIcon(bitmap, iconSize);
+                        sPhotoCache.put(request.displayPhotoUri,
+                                new PhotoEntry(request.photo, request.photoIcon));
+
+                        Log.d(this, "Loading image: " + msg.arg1 + " image URI: "
+                                + request.displayPhotoUri + " decoded size: " + bitmap.getWidth()
+                                + "x" + bitmap.getHeight());
+                    } else {
+                        request.photo = null;
+                        request.photoIcon = null;
+                        Log.d(this, "Problem with image: " + msg.arg1 + " image URI: "
+                                + request.displayPhotoUri + ", using default image.");
                     }
                     break;
                 default:
@@ -161,17 +201,56 @@ public final class ContactsAsyncHelper {
         }
 
         /**
-         * Returns a Bitmap object suitable for {@link Notification}'s large icon. This might
-         * return null when the given Drawable isn't BitmapDrawable, or if the system fails to
-         * create a scaled Bitmap for the Drawable.
+         * Decodes the photo at the specified URI, subsampled by the largest power of two which
+         * keeps both edges at least {@code targetSize}, so that a large display photo is never
+         * decoded at full resolution only to be scaled down.
          */
-        private Bitmap getPhotoIconWhenAppropriate(Context context, Drawable photo) {
-            if (!(photo instanceof BitmapDrawable)) {
+        private Bitmap decodeSampledBitmap(Context context, Uri uri, int targetSize) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            decodeStream(context, uri, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
                 return null;
             }
-            int iconSize = context.getResources()
-                    .getDimensionPixelSize(R.dimen.notification_icon_size);
-            Bitmap orgBitmap = ((BitmapDrawable) photo).getBitmap();
+
+            int sampleSize = 1;
+            int shorterEdge = Math.min(options.outWidth, options.outHeight);
+            while (shorterEdge / (sampleSize * 2) >= targetSize) {
+                sampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            return decodeStream(context, uri, options);
+        }
+
+        private Bitmap decodeStream(Context context, Uri uri, BitmapFactory.Options options) {
+            InputStream inputStream = null;
+            try {
+                try {
+                    inputStream = context.getContentResolver().openInputStream(uri);
+                } catch (Exception e) {
+                    Log.e(this, e, "Error opening photo input stream");
+                }
+                if (inputStream == null) {
+                    return null;
+                }
+                return BitmapFactory.decodeStream(inputStream, null, options);
+            } finally {
+                if (inputStream != null) {
+                    try {
+                        inputStream.close();
+                    } catch (IOException e) {
+                        Log.e(this, e, "Unable to close input stream.");
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns a Bitmap object suitable for {@link Notification}'s large icon. This might
+         * return null if the system fails to create a scaled Bitmap for the photo.
+         */
+        private Bitmap getPhotoIcon(Bitmap orgBitmap, int iconSize) {
             int orgWidth = orgBitmap.getWidth();
             int orgHeight = orgBitmap.getHeight();
             int longerEdge = orgWidth > orgHeight ? orgWidth : orgHeight;
@@ -196,6 +275,14 @@ public final class ContactsAsyncHelper {
         }
     }
 
+    private static void notifyListener(WorkerArgs args, Drawable photo, Bitmap photoIcon) {
+        if (args.listener != null) {
+            Log.d(LOG_TAG, "Notifying listener: " + args.listener.toString() +
+                    " image: " + args.displayPhotoUri + " completed");
+            args.listener.onImageLoadComplete(args.token, photo, photoIcon, args.cookie);
+        }
+    }
+
     /**
      * Starts an asynchronous image load. After finishing the load,
      * {@link OnImageLoadCompleteListener#onImageLoadComplete(int, Drawable, Bitmap, Object)}
@@ -227,18 +314,46 @@ public final class ContactsAsyncHelper {
         // sent to the callback function.
 
         // setup arguments
-        WorkerArgs args = new WorkerArgs();
+        final WorkerArgs args = new WorkerArgs();
+        args.token = token;
         args.cookie = cookie;
-        args.context = context;
         args.displayPhotoUri = displayPhotoUri;
         args.listener = listener;
 
+        // A photo decoded recently is delivered from the cache, still asynchronously so that
+        // callers see the same ordering as for a real load.
+        final PhotoEntry entry = sPhotoCache.get(displayPhotoUri);
+        if (entry != null) {
+            Log.d(LOG_TAG, "Using cached image: " + displayPhotoUri);
+            sResultHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    notifyListener(args, entry.photo, entry.photoIcon);
+                }
+            });
+            return;
+        }
+
+        // Join a load already in progress for the same photo rather than decoding it twice.
+        LoadRequest request = sPendingRequests.get(displayPhotoUri);
+        if (request != null) {
+            Log.d(LOG_TAG, "Joining pending load of image: " + displayPhotoUri);
+            request.waiters.add(args);
+            return;
+        }
+
+        request = new LoadRequest();
+        request.context = context;
+        request.displayPhotoUri = displayPhotoUri;
+        request.waiters.add(args);
+        sPendingRequests.put(displayPhotoUri, request);
+
         // setup message arguments
         Message msg = sThreadHandler.obtainMessage(token);
         msg.arg1 = EVENT_LOAD_IMAGE;
-        msg.obj = args;
+        msg.obj = request;
 
-        Log.d(LOG_TAG, "Begin loading image: " + args.displayPhotoUri +
+        Log.d(LOG_TAG, "Begin loading image: " + displayPhotoUri +
                 ", displaying default image for now.");
 
         // notify the thread to begin working
@@ -17,6 +17,8 @@
 package com.android.server.telecom;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.telecom.CallState;
 import android.telecom.DisconnectCause;
 import android.telecom.ParcelableConnection;
@@ -31,8 +33,9 @@ import android.telephony.ServiceState;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.Objects;
@@ -91,13 +94,38 @@ final class CreateConnectionProcessor {
     private final Call mCall;
     private final ConnectionServiceRepository mRepository;
     private List<CallAttemptRecord> mAttemptRecords;
-    private Iterator<CallAttemptRecord> mAttemptRecordIterator;
+    private int mNextAttemptIndex;
     private CreateConnectionResponse mResponse;
     private DisconnectCause mLastErrorDisconnectCause;
     private final PhoneAccountRegistrar mPhoneAccountRegistrar;
     private final Context mContext;
     private boolean mShouldUseConnectionManager = true;
     private CreateConnectionTimeout mTimeout;
+    private final ConnectionAttemptTracker mAttemptTracker;
+    private final Handler mHandler = new Handler();
+    private boolean mIsEmergencyCall;
+
+    /**
+     * Attempts which have been started and not yet succeeded or failed, oldest first. The first
+     * entry is normally the call's current connection service; any others are hedged attempts
+     * started in parallel, see {@link #mHedgeRunnable}.
+     */
+    private final List<Response> mPendingAttempts = new ArrayList<>();
+
+    /**
+     * Starts the next attempt in parallel when an emergency call attempt has gone too long without
+     * a response, so that a slow connection service does not use up the whole emergency call
+     * timeout before another one is tried.
+     */
+    private final Runnable mHedgeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mResponse != null && !mPendingAttempts.isEmpty()) {
+                Log.i(CreateConnectionProcessor.this, "No response yet, hedging next attempt");
+                startHedgedAttempt();
+            }
+        }
+    };
 
     CreateConnectionProcessor(
             Call call, ConnectionServiceRepository repository, CreateConnectionResponse response,
@@ -107,6 +135,7 @@ final class CreateConnectionProcessor {
         mResponse = response;
         mPhoneAccountRegistrar = phoneAccountRegistrar;
         mContext = context;
+        mAttemptTracker = CallsManager.getInstance().getConnectionAttemptTracker();
     }
 
     boolean isProcessingComplete() {
@@ -121,18 +150,20 @@ final class CreateConnectionProcessor {
         Log.v(this, "process");
         clearTimeout();
         mAttemptRecords = new ArrayList<>();
+        PhoneAccountHandle userSelectedAccount = mCall.getTargetPhoneAccount();
         if (mCall.getTargetPhoneAccount() != null) {
             mAttemptRecords.add(new CallAttemptRecord(
                     mCall.getTargetPhoneAccount(), mCall.getTargetPhoneAccount()));
         }
         adjustAttemptsForConnectionManager();
         adjustAttemptsForEmergency();
-        mAttemptRecordIterator = mAttemptRecords.iterator();
+        adjustAttemptsForObservedOutcomes(userSelectedAccount);
+        mNextAttemptIndex = 0;
         attemptNextPhoneAccount();
     }
 
     boolean hasMorePhoneAccounts() {
-        return mAttemptRecordIterator.hasNext();
+        return mNextAttemptIndex < mAttemptRecords.size();
     }
 
     void continueProcessingIfPossible(CreateConnectionResponse response,
@@ -151,8 +182,11 @@ final class CreateConnectionProcessor {
         CreateConnectionResponse response = mResponse;
         mResponse = null;
         clearTimeout();
+        mHandler.removeCallbacks(mHedgeRunnable);
 
         ConnectionServiceWrapper service = mCall.getConnectionService();
+        cancelPendingAttempts(null /* winner */);
+
         if (service != null) {
             service.abort(mCall);
             mCall.clearConnectionService();
@@ -165,8 +199,8 @@ final class CreateConnectionProcessor {
     private void attemptNextPhoneAccount() {
         Log.v(this, "attemptNextPhoneAccount");
         CallAttemptRecord attempt = null;
-        if (mAttemptRecordIterator.hasNext()) {
-            attempt = mAttemptRecordIterator.next();
+        if (hasMorePhoneAccounts()) {
+            attempt = mAttemptRecords.get(mNextAttemptIndex++);
 
             if (!mPhoneAccountRegistrar.phoneAccountHasPermission(
                     attempt.connectionManagerPhoneAccount)) {
@@ -206,7 +240,10 @@ final class CreateConnectionProcessor {
                 setTimeoutIfNeeded(service, attempt);
 
                 Log.i(this, "Attempting to call from %s", service.getComponentName());
-                service.createConnection(mCall, new Response(service));
+                Response response = new Response(service, attempt, false /* isHedged */);
+                mPendingAttempts.add(response);
+                scheduleHedgeIfNeeded();
+                service.createConnection(mCall, response);
             }
         } else {
             Log.v(this, "attemptNextPhoneAccount, no more accounts, failing");
@@ -220,6 +257,110 @@ final class CreateConnectionProcessor {
         }
     }
 
+    /**
+     * Schedules {@link #mHedgeRunnable} if this is an emergency call, hedging is enabled and there
+     * is another attempt which could be started.
+     */
+    private void scheduleHedgeIfNeeded() {
+        mHandler.removeCallbacks(mHedgeRunnable);
+        if (!mIsEmergencyCall || !hasMorePhoneAccounts()) {
+            return;
+        }
+        long hedgeDelayMillis = Timeouts.getEmergencyCallHedgeDelayMillis(
+                mContext.getContentResolver());
+        if (hedgeDelayMillis > 0) {
+            mHandler.postDelayed(mHedgeRunnable, hedgeDelayMillis);
+        }
+    }
+
+    /**
+     * Starts the next attempt through a connection service which has no attempt in progress,
+     * without giving up on the attempts already in progress. Records are skipped, not consumed,
+     * if their connection service is busy: a connection service tracks one pending connection per
+     * call, so it cannot take a second attempt for the same call.
+     */
+    private void startHedgedAttempt() {
+        for (int i = mNextAttemptIndex; i < mAttemptRecords.size(); i++) {
+            CallAttemptRecord attempt = mAttemptRecords.get(i);
+            if (!mPhoneAccountRegistrar.phoneAccountHasPermission(
+                    attempt.connectionManagerPhoneAccount) ||
+                    (!attempt.connectionManagerPhoneAccount.equals(attempt.targetPhoneAccount) &&
+                    !mPhoneAccountRegistrar.phoneAccountHasPermission(
+                            attempt.targetPhoneAccount))) {
+                continue;
+            }
+            PhoneAccountHandle phoneAccount = attempt.connectionManagerPhoneAccount;
+            ConnectionServiceWrapper service = mRepository.getService(
+                    phoneAccount.getComponentName(), phoneAccount.getUserHandle());
+            if (service == null || hasPendingAttempt(service)) {
+                continue;
+            }
+
+            mAttemptRecords.remove(i);
+            mAttemptRecords.add(mNextAttemptIndex++, attempt);
+
+            Log.i(this, "Hedging attempt %s via %s", attempt, service.getComponentName());
+            // The call stays associated with its current connection service until an attempt
+            // succeeds, so track the extra association separately.
+            service.incrementAssociatedCallCount();
+            service.addCall(mCall);
+            Response response = new Response(service, attempt, true /* isHedged */);
+            mPendingAttempts.add(response);
+            scheduleHedgeIfNeeded();
+            service.createConnection(mCall, response, attempt.connectionManagerPhoneAccount,
+                    attempt.targetPhoneAccount);
+            return;
+        }
+        Log.v(this, "startHedgedAttempt, no attempt available");
+    }
+
+    private boolean hasPendingAttempt(ConnectionServiceWrapper service) {
+        for (int i = 0; i < mPendingAttempts.size(); i++) {
+            if (mPendingAttempts.get(i).mService == service) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Aborts every pending attempt other than the specified one.
+     *
+     * @param winner The attempt to keep, or null to abort all of them.
+     */
+    private void cancelPendingAttempts(Response winner) {
+        ConnectionServiceWrapper currentService = mCall.getConnectionService();
+        Response[] pendingAttempts = mPendingAttempts.toArray(
+                new Response[mPendingAttempts.size()]);
+        mPendingAttempts.clear();
+        for (Response attempt : pendingAttempts) {
+            if (attempt == winner) {
+                continue;
+            }
+            attempt.mIsCancelled = true;
+            attempt.recordOutcome(ConnectionAttemptTracker.OUTCOME_ABORTED);
+            if (attempt.mService != currentService) {
+                attempt.mService.abort(mCall);
+                attempt.mService.decrementAssociatedCallCount();
+            } else if (winner != null) {
+                // The call's own connection service lost to a hedged attempt; the caller moves
+                // the call over to the winner. Without a winner the caller aborts it instead.
+                attempt.mService.abort(mCall);
+            }
+        }
+    }
+
+    /**
+     * Makes the connection service of the specified hedged attempt the call's connection service.
+     */
+    private void adoptAttempt(Response attempt) {
+        mCall.setConnectionManagerPhoneAccount(attempt.mAttempt.connectionManagerPhoneAccount);
+        mCall.setTargetPhoneAccount(attempt.mAttempt.targetPhoneAccount);
+        mCall.setConnectionService(attempt.mService);
+        // Drop the extra association taken in startHedgedAttempt.
+        attempt.mService.decrementAssociatedCallCount();
+    }
+
     private void setTimeoutIfNeeded(ConnectionServiceWrapper service, CallAttemptRecord attempt) {
         clearTimeout();
 
@@ -288,7 +429,8 @@ final class CreateConnectionProcessor {
     // If we are possibly attempting to call a local emergency number, ensure that the
     // plain PSTN connection services are listed, and nothing else.
     private void adjustAttemptsForEmergency()  {
-        if (TelephonyUtil.shouldProcessAsEmergency(mContext, mCall.getHandle())) {
+        mIsEmergencyCall = TelephonyUtil.shouldProcessAsEmergency(mContext, mCall.getHandle());
+        if (mIsEmergencyCall) {
             Log.i(this, "Emergency number detected");
             mAttemptRecords.clear();
             List<PhoneAccount> allAccounts = mPhoneAccountRegistrar.getAllPhoneAccounts();
@@ -338,6 +480,47 @@ final class CreateConnectionProcessor {
         }
     }
 
+    // Orders the attempts so that the connection service most likely to succeed quickly is tried
+    // first, based on past attempts. Attempts for the account the user selected are never moved,
+    // and for emergency calls the connection manager backup stays behind the PSTN accounts.
+    private void adjustAttemptsForObservedOutcomes(PhoneAccountHandle userSelectedAccount) {
+        if (mAttemptRecords.size() < 2) {
+            return;
+        }
+
+        List<Integer> freeIndices = new ArrayList<>();
+        List<CallAttemptRecord> freeRecords = new ArrayList<>();
+        for (int i = 0; i < mAttemptRecords.size(); i++) {
+            CallAttemptRecord record = mAttemptRecords.get(i);
+            boolean isUserSelected = userSelectedAccount != null
+                    && userSelectedAccount.equals(record.targetPhoneAccount);
+            boolean isEmergencyBackup = mIsEmergencyCall
+                    && !Objects.equals(record.connectionManagerPhoneAccount,
+                            record.targetPhoneAccount);
+            if (!isUserSelected && !isEmergencyBackup) {
+                freeIndices.add(i);
+                freeRecords.add(record);
+            }
+        }
+        if (freeRecords.size() < 2) {
+            return;
+        }
+
+        // Collections.sort is stable, so accounts which score the same keep their order.
+        Collections.sort(freeRecords, new Comparator<CallAttemptRecord>() {
+            @Override
+            public int compare(CallAttemptRecord lhs, CallAttemptRecord rhs) {
+                return Float.compare(
+                        mAttemptTracker.getScore(rhs.connectionManagerPhoneAccount),
+                        mAttemptTracker.getScore(lhs.connectionManagerPhoneAccount));
+            }
+        });
+        for (int i = 0; i < freeIndices.size(); i++) {
+            mAttemptRecords.set(freeIndices.get(i), freeRecords.get(i));
+        }
+        Log.v(this, "adjustAttemptsForObservedOutcomes, attempts: %s", mAttemptRecords);
+    }
+
     /** Returns all connection services used by the call attempt records. */
     private static Collection<PhoneAccountHandle> getConnectionServices(
             List<CallAttemptRecord> records) {
@@ -350,20 +533,44 @@ final class CreateConnectionProcessor {
 
     private class Response implements CreateConnectionResponse {
         private final ConnectionServiceWrapper mService;
+        private final CallAttemptRecord mAttempt;
+        private final boolean mIsHedged;
+        private final long mStartTimeMillis = SystemClock.elapsedRealtime();
+        private boolean mIsCancelled;
 
-        Response(ConnectionServiceWrapper service) {
+        Response(ConnectionServiceWrapper service, CallAttemptRecord attempt, boolean isHedged) {
             mService = service;
+            mAttempt = attempt;
+            mIsHedged = isHedged;
+        }
+
+        void recordOutcome(int outcome) {
+            mAttemptTracker.onAttemptCompleted(mAttempt.connectionManagerPhoneAccount,
+                    mIsEmergencyCall, mIsHedged, outcome,
+                    SystemClock.elapsedRealtime() - mStartTimeMillis);
         }
 
         @Override
         public void handleCreateConnectionSuccess(
                 CallIdMapper idMapper,
                 ParcelableConnection connection) {
-            if (mResponse == null) {
+            if (mResponse == null || mIsCancelled) {
                 // Nobody is listening for this connection attempt any longer; ask the responsible
                 // ConnectionService to tear down any resources associated with the call
                 mService.abort(mCall);
             } else {
+                recordOutcome(ConnectionAttemptTracker.OUTCOME_SUCCESS);
+                mHandler.removeCallbacks(mHedgeRunnable);
+                cancelPendingAttempts(this);
+                if (mService != mCall.getConnectionService()) {
+                    // A hedged attempt won; the timeout belongs to the attempt which lost.
+                    clearTimeout();
+                    adoptAttempt(this);
+                }
+                if (mTimeout != null) {
+                    mTimeout.onConnectionCreated();
+                }
+
                 // Success -- share the good news and remember that we are no longer interested
                 // in hearing about any more attempts
                 mResponse.handleCreateConnectionSuccess(idMapper, connection);
@@ -375,9 +582,30 @@ final class CreateConnectionProcessor {
 
         @Override
         public void handleCreateConnectionFailure(DisconnectCause errorDisconnectCause) {
+            if (mIsCancelled) {
+                return;
+            }
             // Failure of some sort; record the reasons for failure and try again if possible
             Log.d(CreateConnectionProcessor.this, "Connection failed: (%s)", errorDisconnectCause);
+            recordOutcome(ConnectionAttemptTracker.OUTCOME_FAILURE);
+            mPendingAttempts.remove(this);
             mLastErrorDisconnectCause = errorDisconnectCause;
+
+            if (mResponse != null && !mPendingAttempts.isEmpty()) {
+                // Another attempt is still running; wait for it rather than starting a new one.
+                if (mService == mCall.getConnectionService()) {
+                    clearTimeout();
+                    Response next = mPendingAttempts.get(0);
+                    adoptAttempt(next);
+                    setTimeoutIfNeeded(next.mService, next.mAttempt);
+                } else {
+                    // Undo the association taken in startHedgedAttempt, as abort does for the
+                    // attempts cancelled in cancelPendingAttempts.
+                    mService.removeCall(mCall);
+                    mService.decrementAssociatedCallCount();
+                }
+                return;
+            }
             attemptNextPhoneAccount();
         }
     }
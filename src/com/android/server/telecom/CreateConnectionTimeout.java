@@ -20,6 +20,7 @@ import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.telecom.CallState;
 import android.telecom.PhoneAccountHandle;
 import android.telephony.TelephonyManager;
@@ -40,6 +41,9 @@ final class CreateConnectionTimeout extends PhoneStateListener implements Runnab
     private final Handler mHandler = new Handler();
     private boolean mIsRegistered;
     private boolean mIsCallTimedOut;
+    private boolean mIsConnectionCreated;
+    private long mTimeoutLengthMillis;
+    private long mTimeoutStartMillis;
 
     CreateConnectionTimeout(Context context, PhoneAccountRegistrar phoneAccountRegistrar,
             ConnectionServiceWrapper service, Call call) {
@@ -95,12 +99,31 @@ final class CreateConnectionTimeout extends PhoneStateListener implements Runnab
         Log.d(this, "unregisterTimeout");
         mIsRegistered = false;
         mHandler.removeCallbacksAndMessages(null);
+        CallsManager.getInstance().getConnectionAttemptTracker().onTimeoutCleared(mCall);
     }
 
     boolean isCallTimedOut() {
         return mIsCallTimedOut;
     }
 
+    /**
+     * Called when the connection service has created the connection. The learned timeout only
+     * bounds connection creation; from here on the call gets the rest of the configured timeout to
+     * become active, since that also covers the far end ringing and answering.
+     */
+    void onConnectionCreated() {
+        mIsConnectionCreated = true;
+        if (!mIsRegistered || mTimeoutLengthMillis <= 0) {
+            return;
+        }
+        CallsManager.getInstance().getConnectionAttemptTracker().onConnectionCreated(mCall);
+        long remainingMillis = mTimeoutLengthMillis
+                - (SystemClock.elapsedRealtime() - mTimeoutStartMillis);
+        Log.d(this, "onConnectionCreated, %d ms of the configured timeout left", remainingMillis);
+        mHandler.removeCallbacks(this);
+        mHandler.postDelayed(this, Math.max(0, remainingMillis));
+    }
+
     @Override
     public void onServiceStateChanged(ServiceState serviceState) {
         long timeoutLengthMillis = getTimeoutLengthMillis(serviceState);
@@ -112,7 +135,23 @@ final class CreateConnectionTimeout extends PhoneStateListener implements Runnab
             // If cellular service is available then don't bother with a timeout.
             Log.d(this, "onServiceStateChanged, cellular service available, skipping");
         } else {
-            mHandler.postDelayed(this, timeoutLengthMillis);
+            mTimeoutLengthMillis = timeoutLengthMillis;
+            mTimeoutStartMillis = SystemClock.elapsedRealtime();
+            long delayMillis = timeoutLengthMillis;
+            if (!mIsConnectionCreated) {
+                // Fail over sooner when connections through this account are usually created
+                // much faster than the configured timeout in the current radio state, and learn
+                // from this attempt under the same radio state.
+                ConnectionAttemptTracker tracker =
+                        CallsManager.getInstance().getConnectionAttemptTracker();
+                PhoneAccountHandle account = mCall.getConnectionManagerPhoneAccount();
+                delayMillis = tracker.getAdaptiveTimeoutMillis(account, serviceState.getState(),
+                        timeoutLengthMillis);
+                tracker.onTimeoutStarted(mCall, account, serviceState.getState());
+            }
+            Log.d(this, "onServiceStateChanged, configured %d, using %d", timeoutLengthMillis,
+                    delayMillis);
+            mHandler.postDelayed(this, delayMillis);
         }
     }
 
@@ -120,6 +159,7 @@ final class CreateConnectionTimeout extends PhoneStateListener implements Runnab
     public void run() {
         if (mIsRegistered && isCallBeingPlaced(mCall)) {
             Log.d(this, "run, call timed out, calling disconnect");
+            CallsManager.getInstance().getConnectionAttemptTracker().onTimeoutExpired(mCall);
             mIsCallTimedOut = true;
             mConnectionService.disconnect(mCall);
         }
@@ -19,9 +19,11 @@ package com.android.server.telecom;
 import android.content.Context;
 import android.media.AudioManager;
 import android.media.ToneGenerator;
+import android.os.SystemClock;
 import android.provider.Settings;
 
 // TODO: Needed for move to system service: import com.android.internal.R;
+import com.android.internal.util.IndentingPrintWriter;
 import com.google.common.collect.ImmutableMap;
 
 import java.util.Map;
@@ -30,7 +32,8 @@ import java.util.Map;
  * Plays DTMF tones locally for the caller to hear. In order to reduce (1) the amount of times we
  * check the "play local tones" setting and (2) the length of time we keep the tone generator, this
  * class employs a concept of a call "session" that starts and stops when the foreground call
- * changes.
+ * changes. The tone generator itself is shared between sessions through a
+ * {@link PooledToneGenerator}, so that swapping between calls does not reallocate it.
  */
 class DtmfLocalTonePlayer extends CallsManagerListenerBase {
     private static final Map<Character, Integer> TONE_MAP =
@@ -49,9 +52,31 @@ class DtmfLocalTonePlayer extends CallsManagerListenerBase {
                     .put('*', ToneGenerator.TONE_DTMF_S)
                     .build();
 
-    /** Generator used to actually play the tone. */
+    // Codes for the keypress latency stats: the first keypress of a session whose generator was
+    // created for it or reused from the pool, and any later keypress.
+    private static final int KEYPRESS_FIRST_COLD = 0;
+    private static final int KEYPRESS_FIRST_POOLED = 1;
+    private static final int KEYPRESS_REPEAT = 2;
+    private static final String[] KEYPRESS_NAMES = { "first(cold)", "first(pooled)", "repeat" };
+
+    /** Generator used to actually play the tone, shared between sessions. */
+    private final PooledToneGenerator mTonePool;
+
+    /** The generator of the current session, or null if local tones are not played. */
     private ToneGenerator mToneGenerator;
 
+    /** True if the current session holds a reference to {@link #mTonePool}. */
+    private boolean mHasToneReference;
+
+    /** The latency stats code of the next keypress. */
+    private int mNextKeypressCode;
+
+    /**
+     * Time from a keypress reaching Telecom to the main thread starting the tone (wait), and
+     * spent starting the tone (handle).
+     */
+    private final MessageLatencyStats mKeypressStats = new MessageLatencyStats(KEYPRESS_NAMES);
+
     /** The current call associated with an existing dtmf session. */
     private Call mCall;
 
@@ -60,6 +85,8 @@ class DtmfLocalTonePlayer extends CallsManagerListenerBase {
 
     public DtmfLocalTonePlayer(Context context) {
         mContext = context;
+        mTonePool = new PooledToneGenerator(
+                context.getContentResolver(), AudioManager.STREAM_DTMF, 80);
     }
 
     /** {@inheritDoc} */
@@ -76,6 +103,18 @@ class DtmfLocalTonePlayer extends CallsManagerListenerBase {
      * @param c The digit to play.
      */
     void playTone(Call call, char c) {
+        playTone(call, c, 0);
+    }
+
+    /**
+     * Starts playing the dtmf tone specified by c in response to a keypress.
+     *
+     * @param call The associated call.
+     * @param c The digit to play.
+     * @param requestUptimeMillis When the keypress reached Telecom, from
+     *         {@link SystemClock#uptimeMillis}, or 0 if the tone is not for a keypress.
+     */
+    void playTone(Call call, char c, long requestUptimeMillis) {
         // Do nothing if it is not the right call.
         if (mCall != call) {
             return;
@@ -86,7 +125,14 @@ class DtmfLocalTonePlayer extends CallsManagerListenerBase {
         } else {
             Log.d(this, "starting local tone: %c.", c);
             if (TONE_MAP.containsKey(c)) {
+                long waitMicros = (SystemClock.uptimeMillis() - requestUptimeMillis) * 1000;
+                long startNanos = SystemClock.elapsedRealtimeNanos();
                 mToneGenerator.startTone(TONE_MAP.get(c), -1 /* toneDuration */);
+                if (requestUptimeMillis > 0) {
+                    mKeypressStats.record(mNextKeypressCode, waitMicros,
+                            (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000);
+                    mNextKeypressCode = KEYPRESS_REPEAT;
+                }
             }
         }
     }
@@ -130,15 +176,11 @@ class DtmfLocalTonePlayer extends CallsManagerListenerBase {
 
         mCall = call;
 
-        if (areLocalTonesEnabled) {
-            if (mToneGenerator == null) {
-                try {
-                    mToneGenerator = new ToneGenerator(AudioManager.STREAM_DTMF, 80);
-                } catch (RuntimeException e) {
-                    Log.e(this, e, "Error creating local tone generator.");
-                    mToneGenerator = null;
-                }
-            }
+        if (areLocalTonesEnabled && !mHasToneReference) {
+            mNextKeypressCode = mTonePool.isAllocated() ? KEYPRESS_FIRST_POOLED
+                    : KEYPRESS_FIRST_COLD;
+            mToneGenerator = mTonePool.acquire();
+            mHasToneReference = true;
         }
     }
 
@@ -154,10 +196,28 @@ class DtmfLocalTonePlayer extends CallsManagerListenerBase {
 
             mCall = null;
 
-            if (mToneGenerator != null) {
-                mToneGenerator.release();
-                mToneGenerator = null;
+            // The generator is kept for a while in case another session starts soon.
+            mToneGenerator = null;
+            if (mHasToneReference) {
+                mTonePool.release();
+                mHasToneReference = false;
             }
         }
     }
+
+    /**
+     * Dumps the state of the {@link DtmfLocalTonePlayer}.
+     *
+     * @param pw The {@code IndentingPrintWriter} to write the state to.
+     */
+    void dump(IndentingPrintWriter pw) {
+        pw.println("mTonePool:");
+        pw.increaseIndent();
+        mTonePool.dump(pw);
+        pw.decreaseIndent();
+        pw.println("Keypress to local tone latency:");
+        pw.increaseIndent();
+        mKeypressStats.dump(pw);
+        pw.decreaseIndent();
+    }
 }
@@ -89,7 +89,7 @@ class InCallAdapter extends IInCallAdapter.Stub {
                 case MSG_PLAY_DTMF_TONE:
                     call = mCallIdMapper.getCall(msg.obj);
                     if (call != null) {
-                        mCallsManager.playDtmfTone(call, (char) msg.arg1);
+                        mCallsManager.playDtmfTone(call, (char) msg.arg1, msg.getWhen());
                     } else {
                         Log.w(this, "playDtmfTone, unknown call id: %s", msg.obj);
                     }
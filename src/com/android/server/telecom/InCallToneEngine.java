@@ -0,0 +1,256 @@
+/*
+ * Copyright 2014, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.media.AudioManager;
+import android.media.ToneGenerator;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.util.SparseArray;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+/**
+ * Plays the tones of all {@link InCallTonePlayer}s on one long-lived thread. Start and stop
+ * requests are queued to that thread as messages, and a {@link ToneGenerator} is created for each
+ * stream, volume and tone the first time it is needed and then reused, so that starting a tone
+ * neither starts a thread nor allocates. Different tones play on different generators, so a short
+ * tone never cuts off a longer one such as call waiting; starting a tone which is already playing
+ * replaces the earlier instance. Generators are released once no tone has played for a while.
+ */
+final class InCallToneEngine {
+    // Message codes used with the engine thread.
+    private static final int MSG_START = 1;
+    private static final int MSG_STOP = 2;
+    private static final int MSG_TIMEOUT = 3;
+    private static final int MSG_RELEASE_GENERATORS = 4;
+
+    // Message codes used with the main thread.
+    private static final int MSG_TONE_FINISHED = 1;
+
+    // Buffer time (in msec) to add on to the tone timeout value. Needed mainly when the timeout
+    // value for a tone is exact duration of the tone itself.
+    private static final int TIMEOUT_BUFFER_MILLIS = 20;
+
+    /** How long generators are kept after the last tone stops. */
+    private static final int IDLE_RELEASE_MILLIS = 30000;
+
+    private final CallAudioManager mCallAudioManager;
+
+    /** Handler running on the engine thread. */
+    private final Handler mHandler;
+
+    private final Handler mMainThreadHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_TONE_FINISHED) {
+                // Release focus on the main thread.
+                if (mTonesPlaying == 0) {
+                    Log.wtf(InCallToneEngine.this, "Over-releasing focus for tone player.");
+                } else if (--mTonesPlaying == 0) {
+                    mCallAudioManager.setIsTonePlaying(false);
+                }
+            }
+        }
+    };
+
+    /** Generators by {@link #getGeneratorKey}. Only used by the engine thread. */
+    private final SparseArray<ToneGenerator> mGenerators = new SparseArray<>();
+
+    /** The player using each generator, by the same key. Only used by the engine thread. */
+    private final SparseArray<InCallTonePlayer> mGeneratorOwners = new SparseArray<>();
+
+    /** Number of tones playing. Only used by the engine thread. */
+    private int mActiveTones;
+
+    /**
+     * Keeps count of the number of started tones which have not finished so that we can notify
+     * CallAudioManager when we need focus and when it can be release. This should only be
+     * manipulated from the main thread.
+     */
+    private int mTonesPlaying;
+
+    // Counters for dumpsys, written on the engine thread.
+    private long mTonesStarted;
+    private long mTonesReplaced;
+    private long mGeneratorsCreated;
+
+    InCallToneEngine(CallAudioManager callAudioManager) {
+        mCallAudioManager = callAudioManager;
+
+        HandlerThread thread = new HandlerThread("in-call-tones");
+        thread.start();
+        mHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_START:
+                        handleStart((InCallTonePlayer) msg.obj);
+                        break;
+                    case MSG_STOP:
+                    case MSG_TIMEOUT:
+                        handleStop((InCallTonePlayer) msg.obj);
+                        break;
+                    case MSG_RELEASE_GENERATORS:
+                        handleReleaseGenerators();
+                        break;
+                }
+            }
+        };
+    }
+
+    /**
+     * Queues the start of a tone. Must be called on the main thread.
+     */
+    void start(InCallTonePlayer player) {
+        ThreadUtil.checkOnMainThread();
+
+        mTonesPlaying++;
+        if (mTonesPlaying == 1) {
+            mCallAudioManager.setIsTonePlaying(true);
+        }
+
+        mHandler.obtainMessage(MSG_START, player).sendToTarget();
+    }
+
+    /**
+     * Queues the stop of a tone. A tone which has not been started yet will not play.
+     */
+    void stop(InCallTonePlayer player) {
+        mHandler.obtainMessage(MSG_STOP, player).sendToTarget();
+    }
+
+    private void handleStart(InCallTonePlayer player) {
+        if (player.mState == InCallTonePlayer.STATE_STOPPED) {
+            // Stopped before it was started.
+            mMainThreadHandler.sendEmptyMessage(MSG_TONE_FINISHED);
+            return;
+        }
+
+        int stream = AudioManager.STREAM_VOICE_CALL;
+        if (mCallAudioManager.isBluetoothAudioOn()) {
+            stream = AudioManager.STREAM_BLUETOOTH_SCO;
+        }
+
+        if (player.getToneType() == ToneGenerator.TONE_SUPERVISORY_CH) {
+            stream = AudioManager.STREAM_INCALL_MUSIC;
+        }
+
+        int key = getGeneratorKey(stream, player.getToneVolume(), player.getToneType());
+        ToneGenerator toneGenerator = mGenerators.get(key);
+        if (toneGenerator == null) {
+            // If the ToneGenerator creation fails, just continue without it. It is a local audio
+            // signal, and is not as important.
+            try {
+                Log.v(this, "Creating generator for stream %d", stream);
+                toneGenerator = new ToneGenerator(stream, player.getToneVolume());
+                mGenerators.put(key, toneGenerator);
+                mGeneratorsCreated++;
+            } catch (RuntimeException e) {
+                Log.w(this, "Failed to create ToneGenerator.", e);
+                player.mState = InCallTonePlayer.STATE_STOPPED;
+                mMainThreadHandler.sendEmptyMessage(MSG_TONE_FINISHED);
+                return;
+            }
+        }
+
+        // TODO: Certain CDMA tones need to check the ringer-volume state before
+        // playing. See CallNotifier.InCallTonePlayer.
+
+        InCallTonePlayer previousOwner = mGeneratorOwners.get(key);
+        if (previousOwner != null) {
+            Log.d(this, "Tone %d replaces an earlier instance of itself.", player.getToneId());
+            finish(previousOwner);
+            mTonesReplaced++;
+        }
+
+        mGeneratorOwners.put(key, player);
+        player.mGeneratorKey = key;
+        player.mState = InCallTonePlayer.STATE_ON;
+        mActiveTones++;
+        mTonesStarted++;
+        mHandler.removeMessages(MSG_RELEASE_GENERATORS);
+
+        toneGenerator.startTone(player.getToneType());
+        int toneLengthMillis = player.getToneLengthMillis();
+        Log.v(this, "Starting tone %d for %d ms.", player.getToneId(), toneLengthMillis);
+        if (toneLengthMillis != InCallTonePlayer.LENGTH_INDEFINITE) {
+            mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_TIMEOUT, player),
+                    toneLengthMillis + TIMEOUT_BUFFER_MILLIS);
+        }
+    }
+
+    private void handleStop(InCallTonePlayer player) {
+        if (player.mState == InCallTonePlayer.STATE_OFF) {
+            // Not started yet, make sure it never plays.
+            player.mState = InCallTonePlayer.STATE_STOPPED;
+            return;
+        }
+        if (player.mState != InCallTonePlayer.STATE_ON) {
+            return;
+        }
+
+        if (mGeneratorOwners.get(player.mGeneratorKey) == player) {
+            Log.v(this, "Stopping tone %d.", player.getToneId());
+            mGenerators.get(player.mGeneratorKey).stopTone();
+            mGeneratorOwners.remove(player.mGeneratorKey);
+        }
+        finish(player);
+
+        if (mActiveTones == 0) {
+            mHandler.sendEmptyMessageDelayed(MSG_RELEASE_GENERATORS, IDLE_RELEASE_MILLIS);
+        }
+    }
+
+    /**
+     * Marks a playing tone as stopped and releases its hold on focus.
+     */
+    private void finish(InCallTonePlayer player) {
+        mHandler.removeMessages(MSG_TIMEOUT, player);
+        player.mState = InCallTonePlayer.STATE_STOPPED;
+        mActiveTones--;
+        mMainThreadHandler.sendEmptyMessage(MSG_TONE_FINISHED);
+    }
+
+    private void handleReleaseGenerators() {
+        if (mActiveTones > 0) {
+            return;
+        }
+        Log.v(this, "Releasing %d generators.", mGenerators.size());
+        for (int i = 0; i < mGenerators.size(); i++) {
+            mGenerators.valueAt(i).release();
+        }
+        mGenerators.clear();
+        mGeneratorOwners.clear();
+    }
+
+    private static int getGeneratorKey(int stream, int volume, int toneType) {
+        return (stream << 16) | (volume << 8) | toneType;
+    }
+
+    /**
+     * Dumps the state of the {@link InCallToneEngine}.
+     *
+     * @param pw The {@code IndentingPrintWriter} to write the state to.
+     */
+    void dump(IndentingPrintWriter pw) {
+        pw.println("tones started: " + mTonesStarted + ", replaced: " + mTonesReplaced
+                + ", generators created: " + mGeneratorsCreated);
+    }
+}
@@ -16,30 +16,39 @@
 
 package com.android.server.telecom;
 
-import android.media.AudioManager;
 import android.media.ToneGenerator;
-import android.os.Handler;
-import android.os.Looper;
+
+import com.android.internal.util.IndentingPrintWriter;
 
 /**
  * Play a call-related tone (ringback, busy signal, etc.) through ToneGenerator. To use, create an
  * instance using InCallTonePlayer.Factory (passing in the TONE_* constant for the tone you want)
- * and start() it. Implemented on top of {@link Thread} so that the tone plays in its own thread.
+ * and call startTone() on it. The tone is played by an {@link InCallToneEngine} shared by all
+ * players, so starting a tone does not start a thread or create a ToneGenerator.
  */
-public final class InCallTonePlayer extends Thread {
+public final class InCallTonePlayer {
 
     /**
      * Factory used to create InCallTonePlayers. Exists to aid with testing mocks.
      */
     public static class Factory {
-        private final CallAudioManager mCallAudioManager;
+        private final InCallToneEngine mEngine;
 
         Factory(CallAudioManager callAudioManager) {
-            mCallAudioManager = callAudioManager;
+            mEngine = new InCallToneEngine(callAudioManager);
         }
 
         InCallTonePlayer createPlayer(int tone) {
-            return new InCallTonePlayer(tone, mCallAudioManager);
+            return new InCallTonePlayer(tone, mEngine);
+        }
+
+        /**
+         * Dumps the state of the {@link InCallTonePlayer.Factory}.
+         *
+         * @param pw The {@code IndentingPrintWriter} to write the state to.
+         */
+        void dump(IndentingPrintWriter pw) {
+            mEngine.dump(pw);
         }
     }
 
@@ -65,214 +74,160 @@ public final class InCallTonePlayer extends Thread {
     private static final int RELATIVE_VOLUME_HIPRI = 80;
     private static final int RELATIVE_VOLUME_LOPRI = 50;
 
-    // Buffer time (in msec) to add on to the tone timeout value. Needed mainly when the timeout
-    // value for a tone is exact duration of the tone itself.
-    private static final int TIMEOUT_BUFFER_MILLIS = 20;
+    /** Tone length of tones which play until {@link #stopTone} is called. */
+    static final int LENGTH_INDEFINITE = 0;
 
     // The tone state.
-    private static final int STATE_OFF = 0;
-    private static final int STATE_ON = 1;
-    private static final int STATE_STOPPED = 2;
+    static final int STATE_OFF = 0;
+    static final int STATE_ON = 1;
+    static final int STATE_STOPPED = 2;
 
-    /**
-     * Keeps count of the number of actively playing tones so that we can notify CallAudioManager
-     * when we need focus and when it can be release. This should only be manipulated from the main
-     * thread.
-     */
-    private static int sTonesPlaying = 0;
-
-    private final CallAudioManager mCallAudioManager;
-
-    private final Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
+    private final InCallToneEngine mEngine;
 
     /** The ID of the tone to play. */
     private final int mToneId;
 
-    /** Current state of the tone player. */
-    private int mState;
+    /** Passed to ToneGenerator.startTone. */
+    private final int mToneType;
+
+    /** The volume of the ToneGenerator playing the tone. */
+    private final int mToneVolume;
+
+    private final int mToneLengthMillis;
+
+    /** Current state of the tone player. Only used by the engine thread. */
+    int mState = STATE_OFF;
+
+    /** The key of the generator playing the tone. Only used by the engine thread. */
+    int mGeneratorKey;
 
     /**
      * Initializes the tone player. Private; use the {@link Factory} to create tone players.
      *
      * @param toneId ID of the tone to play, see TONE_* constants.
      */
-    private InCallTonePlayer(int toneId, CallAudioManager callAudioManager) {
-        mState = STATE_OFF;
+    private InCallTonePlayer(int toneId, InCallToneEngine engine) {
         mToneId = toneId;
-        mCallAudioManager = callAudioManager;
-    }
-
-    /** {@inheritDoc} */
-    @Override
-    public void run() {
-        ToneGenerator toneGenerator = null;
-        try {
-            Log.d(this, "run(toneId = %s)", mToneId);
-
-            final int toneType;  // Passed to ToneGenerator.startTone.
-            final int toneVolume;  // Passed to the ToneGenerator constructor.
-            final int toneLengthMillis;
-
-            switch (mToneId) {
-                case TONE_BUSY:
-                    // TODO: CDMA-specific tones
-                    toneType = ToneGenerator.TONE_SUP_BUSY;
-                    toneVolume = RELATIVE_VOLUME_HIPRI;
-                    toneLengthMillis = 4000;
-                    break;
-                case TONE_CALL_ENDED:
-                    toneType = ToneGenerator.TONE_PROP_PROMPT;
-                    toneVolume = RELATIVE_VOLUME_HIPRI;
-                    toneLengthMillis = 200;
-                    break;
-                case TONE_OTA_CALL_ENDED:
-                    // TODO: fill in
-                    throw new IllegalStateException("OTA Call ended NYI.");
-                case TONE_CALL_WAITING:
-                    toneType = ToneGenerator.TONE_SUP_CALL_WAITING;
-                    toneVolume = RELATIVE_VOLUME_HIPRI;
-                    toneLengthMillis = Integer.MAX_VALUE - TIMEOUT_BUFFER_MILLIS;
-                    break;
-                case TONE_CDMA_DROP:
-                    toneType = ToneGenerator.TONE_CDMA_CALLDROP_LITE;
-                    toneVolume = RELATIVE_VOLUME_LOPRI;
-                    toneLengthMillis = 375;
-                    break;
-                case TONE_CONGESTION:
-                    toneType = ToneGenerator.TONE_SUP_CONGESTION;
-                    toneVolume = RELATIVE_VOLUME_HIPRI;
-                    toneLengthMillis = 4000;
-                    break;
-                case TONE_INTERCEPT:
-                    toneType = ToneGenerator.TONE_CDMA_ABBR_INTERCEPT;
-                    toneVolume = RELATIVE_VOLUME_LOPRI;
-                    toneLengthMillis = 500;
-                    break;
-                case TONE_OUT_OF_SERVICE:
-                    toneType = ToneGenerator.TONE_CDMA_CALLDROP_LITE;
-                    toneVolume = RELATIVE_VOLUME_LOPRI;
-                    toneLengthMillis = 375;
-                    break;
-                case TONE_REDIAL:
-                    toneType = ToneGenerator.TONE_CDMA_ALERT_AUTOREDIAL_LITE;
-                    toneVolume = RELATIVE_VOLUME_LOPRI;
-                    toneLengthMillis = 5000;
-                    break;
-                case TONE_REORDER:
-                    toneType = ToneGenerator.TONE_CDMA_REORDER;
-                    toneVolume = RELATIVE_VOLUME_HIPRI;
-                    toneLengthMillis = 4000;
-                    break;
-                case TONE_RING_BACK:
-                    toneType = ToneGenerator.TONE_SUP_RINGTONE;
-                    toneVolume = RELATIVE_VOLUME_HIPRI;
-                    toneLengthMillis = Integer.MAX_VALUE - TIMEOUT_BUFFER_MILLIS;
-                    break;
-                case TONE_UNOBTAINABLE_NUMBER:
-                    toneType = ToneGenerator.TONE_SUP_ERROR;
-                    toneVolume = RELATIVE_VOLUME_HIPRI;
-                    toneLengthMillis = 4000;
-                    break;
-                case TONE_HOLD_RECALL:
-                    toneType = ToneGenerator.TONE_HOLD_RECALL;
-                    toneVolume = RELATIVE_VOLUME_HIPRI;
-                    // Call hold recall tone is stopped by stopTone() method
-                    toneLengthMillis = Integer.MAX_VALUE - TIMEOUT_BUFFER_MILLIS;
-                    break;
-                case TONE_SUPERVISORY_CH:
-                    toneType = ToneGenerator.TONE_SUPERVISORY_CH;
-                    toneVolume = RELATIVE_VOLUME_HIPRI;
-                    // Supervisory call held tone is stopped by stopTone() method
-                    toneLengthMillis = Integer.MAX_VALUE - TIMEOUT_BUFFER_MILLIS;
-                    break;
-                case TONE_VOICE_PRIVACY:
-                    // TODO: fill in.
-                    throw new IllegalStateException("Voice privacy tone NYI.");
-                default:
-                    throw new IllegalStateException("Bad toneId: " + mToneId);
-            }
-
-            int stream = AudioManager.STREAM_VOICE_CALL;
-            if (mCallAudioManager.isBluetoothAudioOn()) {
-                stream = AudioManager.STREAM_BLUETOOTH_SCO;
-            }
-
-            if (toneType == ToneGenerator.TONE_SUPERVISORY_CH) {
-                stream = AudioManager.STREAM_INCALL_MUSIC;
-            }
-
-            // If the ToneGenerator creation fails, just continue without it. It is a local audio
-            // signal, and is not as important.
-            try {
-                Log.v(this, "Creating generator");
-                toneGenerator = new ToneGenerator(stream, toneVolume);
-            } catch (RuntimeException e) {
-                Log.w(this, "Failed to create ToneGenerator.", e);
-                return;
-            }
-
-            // TODO: Certain CDMA tones need to check the ringer-volume state before
-            // playing. See CallNotifier.InCallTonePlayer.
-
-            // TODO: Some tones play through the end of a call so we need to inform
-            // CallAudioManager that we want focus the same way that Ringer does.
-
-            synchronized (this) {
-                if (mState != STATE_STOPPED) {
-                    mState = STATE_ON;
-                    toneGenerator.startTone(toneType);
-                    try {
-                        Log.v(this, "Starting tone %d...waiting for %d ms.", mToneId,
-                                toneLengthMillis + TIMEOUT_BUFFER_MILLIS);
-                        wait(toneLengthMillis + TIMEOUT_BUFFER_MILLIS);
-                    } catch (InterruptedException e) {
-                        Log.w(this, "wait interrupted", e);
-                    }
-                }
-            }
-            mState = STATE_OFF;
-        } finally {
-            if (toneGenerator != null) {
-                toneGenerator.release();
-            }
-            cleanUpTonePlayer();
+        mEngine = engine;
+
+        final int toneType;
+        final int toneVolume;
+        final int toneLengthMillis;
+
+        switch (mToneId) {
+            case TONE_BUSY:
+                // TODO: CDMA-specific tones
+                toneType = ToneGenerator.TONE_SUP_BUSY;
+                toneVolume = RELATIVE_VOLUME_HIPRI;
+                toneLengthMillis = 4000;
+                break;
+            case TONE_CALL_ENDED:
+                toneType = ToneGenerator.TONE_PROP_PROMPT;
+                toneVolume = RELATIVE_VOLUME_HIPRI;
+                toneLengthMillis = 200;
+                break;
+            case TONE_OTA_CALL_ENDED:
+                // TODO: fill in
+                throw new IllegalStateException("OTA Call ended NYI.");
+            case TONE_CALL_WAITING:
+                toneType = ToneGenerator.TONE_SUP_CALL_WAITING;
+                toneVolume = RELATIVE_VOLUME_HIPRI;
+                toneLengthMillis = LENGTH_INDEFINITE;
+                break;
+            case TONE_CDMA_DROP:
+                toneType = ToneGenerator.TONE_CDMA_CALLDROP_LITE;
+                toneVolume = RELATIVE_VOLUME_LOPRI;
+                toneLengthMillis = 375;
+                break;
+            case TONE_CONGESTION:
+                toneType = ToneGenerator.TONE_SUP_CONGESTION;
+                toneVolume = RELATIVE_VOLUME_HIPRI;
+                toneLengthMillis = 4000;
+                break;
+            case TONE_INTERCEPT:
+                toneType = ToneGenerator.TONE_CDMA_ABBR_INTERCEPT;
+                toneVolume = RELATIVE_VOLUME_LOPRI;
+                toneLengthMillis = 500;
+                break;
+            case TONE_OUT_OF_SERVICE:
+                toneType = ToneGenerator.TONE_CDMA_CALLDROP_LITE;
+                toneVolume = RELATIVE_VOLUME_LOPRI;
+                toneLengthMillis = 375;
+                break;
+            case TONE_REDIAL:
+                toneType = ToneGenerator.TONE_CDMA_ALERT_AUTOREDIAL_LITE;
+                toneVolume = RELATIVE_VOLUME_LOPRI;
+                toneLengthMillis = 5000;
+                break;
+            case TONE_REORDER:
+                toneType = ToneGenerator.TONE_CDMA_REORDER;
+                toneVolume = RELATIVE_VOLUME_HIPRI;
+                toneLengthMillis = 4000;
+                break;
+            case TONE_RING_BACK:
+                toneType = ToneGenerator.TONE_SUP_RINGTONE;
+                toneVolume = RELATIVE_VOLUME_HIPRI;
+                toneLengthMillis = LENGTH_INDEFINITE;
+                break;
+            case TONE_UNOBTAINABLE_NUMBER:
+                toneType = ToneGenerator.TONE_SUP_ERROR;
+                toneVolume = RELATIVE_VOLUME_HIPRI;
+                toneLengthMillis = 4000;
+                break;
+            case TONE_HOLD_RECALL:
+                toneType = ToneGenerator.TONE_HOLD_RECALL;
+                toneVolume = RELATIVE_VOLUME_HIPRI;
+                // Call hold recall tone is stopped by stopTone() method
+                toneLengthMillis = LENGTH_INDEFINITE;
+                break;
+            case TONE_SUPERVISORY_CH:
+                toneType = ToneGenerator.TONE_SUPERVISORY_CH;
+                toneVolume = RELATIVE_VOLUME_HIPRI;
+                // Supervisory call held tone is stopped by stopTone() method
+                toneLengthMillis = LENGTH_INDEFINITE;
+                break;
+            case TONE_VOICE_PRIVACY:
+                // TODO: fill in.
+                throw new IllegalStateException("Voice privacy tone NYI.");
+            default:
+                throw new IllegalStateException("Bad toneId: " + mToneId);
         }
+
+        mToneType = toneType;
+        mToneVolume = toneVolume;
+        mToneLengthMillis = toneLengthMillis;
     }
 
     void startTone() {
         ThreadUtil.checkOnMainThread();
-
-        sTonesPlaying++;
-        if (sTonesPlaying == 1) {
-            mCallAudioManager.setIsTonePlaying(true);
-        }
-
-        start();
+        Log.d(this, "startTone(toneId = %s)", mToneId);
+        mEngine.start(this);
     }
 
     /**
      * Stops the tone.
      */
     void stopTone() {
-        synchronized (this) {
-            if (mState == STATE_ON) {
-                Log.d(this, "Stopping the tone %d.", mToneId);
-                notify();
-            }
-            mState = STATE_STOPPED;
-        }
+        Log.d(this, "Stopping the tone %d.", mToneId);
+        mEngine.stop(this);
     }
 
-    private void cleanUpTonePlayer() {
-        // Release focus on the main thread.
-        mMainThreadHandler.post(new Runnable() {
-            @Override public void run() {
-                if (sTonesPlaying == 0) {
-                    Log.wtf(this, "Over-releasing focus for tone player.");
-                } else if (--sTonesPlaying == 0) {
-                    mCallAudioManager.setIsTonePlaying(false);
-                }
-            }
-        });
+    int getToneId() {
+        return mToneId;
+    }
+
+    int getToneType() {
+        return mToneType;
+    }
+
+    int getToneVolume() {
+        return mToneVolume;
+    }
+
+    /**
+     * @return How long to play the tone for, or {@link #LENGTH_INDEFINITE}.
+     */
+    int getToneLengthMillis() {
+        return mToneLengthMillis;
     }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.content.ContentResolver;
+import android.os.SystemClock;
+import android.telecom.PhoneAccountHandle;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Limits the rate at which each {@link PhoneAccountHandle} may report new incoming or unknown
+ * calls, so that a misbehaving connection service cannot flood the main thread and starve the
+ * handling of real calls. Each account gets a token bucket: a request takes one token, tokens are
+ * refilled at a fixed interval up to a burst size, and a request finding the bucket empty is
+ * rejected.
+ *
+ * The burst size and refill interval are read from {@link Timeouts} on each request so they can
+ * be tuned without a restart. Requests arrive on binder threads, so all methods are synchronized.
+ */
+final class IncomingCallAdmissionController {
+    /** Most accounts tracked at once; the least recently used bucket is dropped beyond this. */
+    private static final int MAX_TRACKED_ACCOUNTS = 64;
+
+    private static final class Bucket {
+        long tokens;
+        long lastRefillMillis;
+        long admitted;
+        long rejected;
+    }
+
+    private final Map<PhoneAccountHandle, Bucket> mBuckets =
+            new LinkedHashMap<PhoneAccountHandle, Bucket>(16, 0.75f, true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<PhoneAccountHandle, Bucket> eldest) {
+                    return size() > MAX_TRACKED_ACCOUNTS;
+                }
+            };
+    private final ContentResolver mContentResolver;
+    private long mTotalRejected;
+
+    IncomingCallAdmissionController(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    /**
+     * Takes a token for a new call request from the specified account.
+     *
+     * @param accountHandle The account reporting the call.
+     * @return True if the request may proceed, false if it should be rejected.
+     */
+    synchronized boolean tryAdmit(PhoneAccountHandle accountHandle) {
+        long burst = Timeouts.getIncomingCallAdmissionBurst(mContentResolver);
+        if (burst <= 0) {
+            return true;
+        }
+        long refillMillis = Math.max(1,
+                Timeouts.getIncomingCallAdmissionRefillMillis(mContentResolver));
+        long now = SystemClock.elapsedRealtime();
+
+        Bucket bucket = mBuckets.get(accountHandle);
+        if (bucket == null) {
+            bucket = new Bucket();
+            bucket.tokens = burst;
+            bucket.lastRefillMillis = now;
+            mBuckets.put(accountHandle, bucket);
+        } else {
+            long refills = (now - bucket.lastRefillMillis) / refillMillis;
+            if (refills > 0) {
+                bucket.tokens = Math.min(burst, bucket.tokens + refills);
+                bucket.lastRefillMillis += refills * refillMillis;
+            }
+            if (bucket.tokens >= burst) {
+                // A full bucket does not bank time towards future refills.
+                bucket.lastRefillMillis = now;
+            }
+        }
+
+        if (bucket.tokens > 0) {
+            bucket.tokens--;
+            bucket.admitted++;
+            return true;
+        }
+        bucket.rejected++;
+        mTotalRejected++;
+        return false;
+    }
+
+    /**
+     * Dumps the state of the {@link IncomingCallAdmissionController}.
+     *
+     * @param pw The {@code IndentingPrintWriter} to write the state to.
+     */
+    synchronized void dump(IndentingPrintWriter pw) {
+        pw.println("burst: " + Timeouts.getIncomingCallAdmissionBurst(mContentResolver)
+                + ", refill(ms): " + Timeouts.getIncomingCallAdmissionRefillMillis(mContentResolver)
+                + ", total rejected: " + mTotalRejected);
+        pw.increaseIndent();
+        for (Map.Entry<PhoneAccountHandle, Bucket> entry : mBuckets.entrySet()) {
+            Bucket bucket = entry.getValue();
+            pw.println(entry.getKey() + ": admitted=" + bucket.admitted + " rejected="
+                    + bucket.rejected + " tokens=" + bucket.tokens);
+        }
+        pw.decreaseIndent();
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+/**
+ * Counts and latency histograms for a fixed set of integer event codes, such as the
+ * {@code Message.what} values handled by a {@link android.os.Handler}. For each code it tracks
+ * the time spent waiting to be handled and the time spent handling. All storage is allocated up
+ * front and {@link #record} does not allocate.
+ *
+ * Recording is expected to happen on a single thread. {@link #dump} may run on another thread and
+ * so may observe a partially updated snapshot, which is acceptable for diagnostics.
+ */
+final class MessageLatencyStats {
+    /**
+     * Histogram buckets are powers of two in microseconds: bucket 0 holds 0us, bucket i holds
+     * [2^(i-1), 2^i) us and the last bucket holds everything from about 4 seconds up.
+     */
+    private static final int BUCKET_COUNT = 24;
+
+    private final String[] mNames;
+    private final boolean mRecordsWait;
+    private final int mCodeCount;
+    private final long[] mCounts;
+    private final long[] mTotalWaitMicros;
+    private final long[] mTotalHandleMicros;
+    private final long[] mMaxHandleMicros;
+    private final long[] mWaitHistogram;
+    private final long[] mHandleHistogram;
+
+    /**
+     * @param names Display names indexed by event code. Codes outside the array, or with a null
+     *         name, are not tracked.
+     */
+    MessageLatencyStats(String[] names) {
+        this(names, true /* recordsWait */);
+    }
+
+    /**
+     * @param names Display names indexed by event code. Codes outside the array, or with a null
+     *         name, are not tracked.
+     * @param recordsWait False if events have no meaningful wait time, in which case only the
+     *         handle time is dumped.
+     */
+    MessageLatencyStats(String[] names, boolean recordsWait) {
+        mNames = names;
+        mRecordsWait = recordsWait;
+        mCodeCount = names.length;
+        mCounts = new long[mCodeCount];
+        mTotalWaitMicros = new long[mCodeCount];
+        mTotalHandleMicros = new long[mCodeCount];
+        mMaxHandleMicros = new long[mCodeCount];
+        mWaitHistogram = new long[mCodeCount * BUCKET_COUNT];
+        mHandleHistogram = new long[mCodeCount * BUCKET_COUNT];
+    }
+
+    /**
+     * Records one handled event.
+     *
+     * @param code The event code.
+     * @param waitMicros Time between the event being queued and being handled.
+     * @param handleMicros Time spent handling the event.
+     */
+    void record(int code, long waitMicros, long handleMicros) {
+        if (code < 0 || code >= mCodeCount || mNames[code] == null) {
+            return;
+        }
+        if (waitMicros < 0) {
+            waitMicros = 0;
+        }
+        if (handleMicros < 0) {
+            handleMicros = 0;
+        }
+        mCounts[code]++;
+        mTotalWaitMicros[code] += waitMicros;
+        mTotalHandleMicros[code] += handleMicros;
+        if (handleMicros > mMaxHandleMicros[code]) {
+            mMaxHandleMicros[code] = handleMicros;
+        }
+        mWaitHistogram[code * BUCKET_COUNT + bucketFor(waitMicros)]++;
+        mHandleHistogram[code * BUCKET_COUNT + bucketFor(handleMicros)]++;
+    }
+
+    /** Clears all recorded values. */
+    void reset() {
+        for (int i = 0; i < mCodeCount; i++) {
+            mCounts[i] = 0;
+            mTotalWaitMicros[i] = 0;
+            mTotalHandleMicros[i] = 0;
+            mMaxHandleMicros[i] = 0;
+        }
+        for (int i = 0; i < mWaitHistogram.length; i++) {
+            mWaitHistogram[i] = 0;
+            mHandleHistogram[i] = 0;
+        }
+    }
+
+    private static int bucketFor(long micros) {
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return bucket < BUCKET_COUNT ? bucket : BUCKET_COUNT - 1;
+    }
+
+    /**
+     * Approximates a percentile from a histogram as the upper bound of the bucket containing it.
+     */
+    private long percentileMicros(long[] histogram, int code, double percentile) {
+        long count = mCounts[code];
+        if (count == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(count * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += histogram[code * BUCKET_COUNT + i];
+            if (seen >= target) {
+                return i == 0 ? 0 : 1L << i;
+            }
+        }
+        return 1L << (BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Dumps one line per event code which has been recorded at least once.
+     *
+     * @param pw The {@code IndentingPrintWriter} to write the state to.
+     */
+    void dump(IndentingPrintWriter pw) {
+        boolean any = false;
+        for (int code = 0; code < mCodeCount; code++) {
+            long count = mCounts[code];
+            if (count == 0) {
+                continue;
+            }
+            any = true;
+            String wait = !mRecordsWait ? "" : " wait(us) avg=" + (mTotalWaitMicros[code] / count)
+                    + " p50<=" + percentileMicros(mWaitHistogram, code, 0.5)
+                    + " p99<=" + percentileMicros(mWaitHistogram, code, 0.99);
+            pw.println(mNames[code] + ": count=" + count + wait
+                    + " handle(us) avg=" + (mTotalHandleMicros[code] / count)
+                    + " p50<=" + percentileMicros(mHandleHistogram, code, 0.5)
+                    + " p99<=" + percentileMicros(mHandleHistogram, code, 0.99)
+                    + " max=" + mMaxHandleMicros[code]);
+        }
+        if (!any) {
+            pw.println("none");
+        }
+    }
+}
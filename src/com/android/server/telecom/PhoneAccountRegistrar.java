@@ -527,6 +527,111 @@ public final class PhoneAccountRegistrar {
         return getPhoneAccountHandles(PhoneAccount.CAPABILITY_CALL_PROVIDER, uriScheme);
     }
 
+    /**
+     * Retrieves the phone accounts with the specified capabilities, supporting the specified URI
+     * scheme, in a single pass. Lets callers which need the full {@link PhoneAccount}s avoid
+     * fetching the handles first and then each account by handle.
+     *
+     * @param capabilities Capabilities which the {@code PhoneAccount} must have.
+     * @param uriScheme URI scheme the {@code PhoneAccount} must handle, or {@code null} for any.
+     * @return The phone accounts.
+     */
+    public List<PhoneAccount> getPhoneAccounts(int capabilities, String uriScheme) {
+        List<PhoneAccount> accounts = new ArrayList<>();
+        for (PhoneAccount m : mState.accounts) {
+            if (!m.hasCapabilities(capabilities)) {
+                // Account doesn't have the right capabilities; skip this one.
+                continue;
+            }
+            if (uriScheme != null && !m.supportsUriScheme(uriScheme)) {
+                // Account doesn't support this URI scheme; skip this one.
+                continue;
+            }
+            if (resolveComponent(m.getAccountHandle()).isEmpty()) {
+                // This component cannot be resolved anymore; skip this one.
+                continue;
+            }
+            if (!isVisibleForUser(m)) {
+                // Account is not visible for the current user; skip this one.
+                continue;
+            }
+            accounts.add(m);
+        }
+        return accounts;
+    }
+
+    /**
+     * Retrieves the phone accounts with the specified capabilities and URI scheme which are
+     * visible to a caller that can see the specified profiles, see {@link
+     * #getProfilesVisibleToCaller}.
+     *
+     * @param capabilities Capabilities which the {@code PhoneAccount} must have.
+     * @param uriScheme URI scheme the {@code PhoneAccount} must handle, or {@code null} for any.
+     * @param profileUserHandles The profiles whose accounts the caller may see.
+     * @return The phone accounts.
+     */
+    public List<PhoneAccount> getPhoneAccounts(int capabilities, String uriScheme,
+            List<UserHandle> profileUserHandles) {
+        List<PhoneAccount> accounts = getPhoneAccounts(capabilities, uriScheme);
+        List<PhoneAccount> visibleAccounts = new ArrayList<>(accounts.size());
+        for (PhoneAccount account : accounts) {
+            if (isVisibleToProfiles(account, profileUserHandles)) {
+                visibleAccounts.add(account);
+            }
+        }
+        return visibleAccounts;
+    }
+
+    /**
+     * Determines which profiles' phone accounts a binder caller may see.
+     *
+     * @param isCallerSystemApp Whether the caller is a system app.
+     * @param callingUserHandle The user handle of the caller.
+     * @param userProfiles The profiles of the user Telecom is running as.
+     * @return The profiles whose accounts the caller may see.
+     */
+    public static List<UserHandle> getProfilesVisibleToCaller(boolean isCallerSystemApp,
+            UserHandle callingUserHandle, List<UserHandle> userProfiles) {
+        if (isCallerSystemApp) {
+            // If the caller lives in /system/priv-app, it can see PhoneAccounts for all of the
+            // *profiles* that the calling user owns, but not for any other *users*.
+            return userProfiles;
+        } else {
+            // Otherwise, it has to be owned by the current caller's profile.
+            List<UserHandle> profileUserHandles = new ArrayList<>(1);
+            profileUserHandles.add(callingUserHandle);
+            return profileUserHandles;
+        }
+    }
+
+    /**
+     * Determines whether a phone account is visible to a caller which can see the specified
+     * profiles.
+     *
+     * @param account The phone account, or {@code null}.
+     * @param profileUserHandles The profiles whose accounts the caller may see.
+     * @return {@code true} if the caller may see the account.
+     */
+    public static boolean isVisibleToProfiles(PhoneAccount account,
+            List<UserHandle> profileUserHandles) {
+        if (account == null) {
+            return false;
+        }
+
+        // If this PhoneAccount has CAPABILITY_MULTI_USER, it should be visible to all users and
+        // all profiles. Only Telephony and SIP accounts should have this capability.
+        if (account.hasCapabilities(PhoneAccount.CAPABILITY_MULTI_USER)) {
+            return true;
+        }
+
+        UserHandle phoneAccountUserHandle = account.getAccountHandle().getUserHandle();
+        if (phoneAccountUserHandle == null) {
+            return false;
+        }
+
+        return profileUserHandles.contains(phoneAccountUserHandle);
+    }
+
     /**
      * Retrieves a list of all phone accounts registered by a specified package.
      *
@@ -718,24 +823,9 @@ public final class PhoneAccountRegistrar {
      *                  URI scheme check.
      */
     private List<PhoneAccountHandle> getPhoneAccountHandles(int flags, String uriScheme) {
-        List<PhoneAccountHandle> accountHandles = new ArrayList<>();
-        for (PhoneAccount m : mState.accounts) {
-            if (!m.hasCapabilities(flags)) {
-                // Account doesn't have the right capabilities; skip this one.
-                continue;
-            }
-            if (uriScheme != null && !m.supportsUriScheme(uriScheme)) {
-                // Account doesn't support this URI scheme; skip this one.
-                continue;
-            }
-            if (resolveComponent(m.getAccountHandle()).isEmpty()) {
-                // This component cannot be resolved anymore; skip this one.
-                continue;
-            }
-            if (!isVisibleForUser(m)) {
-                // Account is not visible for the current user; skip this one.
-                continue;
-            }
+        List<PhoneAccount> accounts = getPhoneAccounts(flags, uriScheme);
+        List<PhoneAccountHandle> accountHandles = new ArrayList<>(accounts.size());
+        for (PhoneAccount m : accounts) {
             accountHandles.add(m.getAccountHandle());
         }
         return accountHandles;
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.content.ContentResolver;
+import android.media.ToneGenerator;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+/**
+ * A {@link ToneGenerator} shared by reference count. The generator is created by the first
+ * {@link #acquire} and, once the last reference is released, kept for
+ * {@link Timeouts#getToneGeneratorIdleReleaseMillis} before being released, so that a reference
+ * taken again in the meantime, for example when the user swaps between calls, reuses it rather
+ * than reallocating the native audio resources.
+ *
+ * Must only be used on the main thread.
+ */
+final class PooledToneGenerator {
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mReleaseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mRefCount == 0 && mToneGenerator != null) {
+                Log.d(PooledToneGenerator.this, "Releasing idle tone generator.");
+                mToneGenerator.release();
+                mToneGenerator = null;
+            }
+        }
+    };
+
+    private final ContentResolver mContentResolver;
+    private final int mStreamType;
+    private final int mVolume;
+    private ToneGenerator mToneGenerator;
+    private int mRefCount;
+    private long mAcquires;
+    private long mCreations;
+
+    /**
+     * @param contentResolver Used to read the idle timeout.
+     * @param streamType The stream type passed to the {@link ToneGenerator} constructor.
+     * @param volume The volume passed to the {@link ToneGenerator} constructor.
+     */
+    PooledToneGenerator(ContentResolver contentResolver, int streamType, int volume) {
+        mContentResolver = contentResolver;
+        mStreamType = streamType;
+        mVolume = volume;
+    }
+
+    /**
+     * Takes a reference to the generator, creating it if needed. Each call must be balanced by a
+     * call to {@link #release}, even if it returns null.
+     *
+     * @return The generator, or null if it could not be created.
+     */
+    ToneGenerator acquire() {
+        ThreadUtil.checkOnMainThread();
+        mRefCount++;
+        mAcquires++;
+        mHandler.removeCallbacks(mReleaseRunnable);
+        if (mToneGenerator == null) {
+            try {
+                mToneGenerator = new ToneGenerator(mStreamType, mVolume);
+                mCreations++;
+            } catch (RuntimeException e) {
+                Log.e(this, e, "Error creating tone generator.");
+            }
+        }
+        return mToneGenerator;
+    }
+
+    /**
+     * Drops a reference taken by {@link #acquire}.
+     */
+    void release() {
+        ThreadUtil.checkOnMainThread();
+        if (mRefCount == 0) {
+            Log.wtf(this, "Over-releasing tone generator.");
+            return;
+        }
+        if (--mRefCount == 0 && mToneGenerator != null) {
+            mHandler.postDelayed(mReleaseRunnable,
+                    Timeouts.getToneGeneratorIdleReleaseMillis(mContentResolver));
+        }
+    }
+
+    /**
+     * @return True if the generator is currently allocated, whether referenced or idle.
+     */
+    boolean isAllocated() {
+        return mToneGenerator != null;
+    }
+
+    /**
+     * Dumps the state of the {@link PooledToneGenerator}.
+     *
+     * @param pw The {@code IndentingPrintWriter} to write the state to.
+     */
+    void dump(IndentingPrintWriter pw) {
+        pw.println("references: " + mRefCount + ", allocated: " + isAllocated()
+                + ", acquires: " + mAcquires + ", creations: " + mCreations);
+    }
+}
@@ -36,6 +36,7 @@ import android.widget.Toast;
 
 import java.lang.NumberFormatException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -45,6 +46,13 @@ public class RespondViaSmsManager extends CallsManagerListenerBase {
     private static final int MSG_CANNED_TEXT_MESSAGES_READY = 1;
     private static final int MSG_SHOW_SENT_TOAST = 2;
 
+    private static final String[] CANNED_RESPONSE_KEYS = {
+            QuickResponseUtils.KEY_CANNED_RESPONSE_PREF_1,
+            QuickResponseUtils.KEY_CANNED_RESPONSE_PREF_2,
+            QuickResponseUtils.KEY_CANNED_RESPONSE_PREF_3,
+            QuickResponseUtils.KEY_CANNED_RESPONSE_PREF_4,
+    };
+
     private static final RespondViaSmsManager sInstance = new RespondViaSmsManager();
 
     private final Handler mHandler = new Handler() {
@@ -54,15 +62,14 @@ public class RespondViaSmsManager extends CallsManagerListenerBase {
                 case MSG_CANNED_TEXT_MESSAGES_READY: {
                     SomeArgs args = (SomeArgs) msg.obj;
                     try {
-                        Response<Void, List<String>> response =
-                                (Response<Void, List<String>>) args.arg1;
-                        List<String> textMessages =
-                                (List<String>) args.arg2;
-                        if (textMessages != null) {
-                            response.onResult(null, textMessages);
-                        } else {
-                            response.onError(null, 0, null);
+                        SharedPreferences prefs = (SharedPreferences) args.arg1;
+                        List<String> textMessages = (List<String>) args.arg2;
+                        mCannedTextMessages = Collections.unmodifiableList(textMessages);
+                        prefs.registerOnSharedPreferenceChangeListener(mPreferenceChangeListener);
+                        for (Response<Void, List<String>> response : mPendingResponses) {
+                            response.onResult(null, mCannedTextMessages);
                         }
+                        mPendingResponses.clear();
                     } finally {
                         args.recycle();
                     }
@@ -83,23 +90,49 @@ public class RespondViaSmsManager extends CallsManagerListenerBase {
         }
     };
 
+    /**
+     * Picks up changes made in this process. Changes made by the settings UI happen in another
+     * process and are reported through {@link #onCannedTextMessageChanged} instead. Held here
+     * since SharedPreferences only keeps a weak reference to its listeners.
+     */
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPreferenceChangeListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                    String textMessage = prefs.getString(key, null);
+                    onCannedTextMessageChanged(key, textMessage);
+                }
+            };
+
+    /** Responses waiting for the startup load to complete. Accessed on the main thread. */
+    private final List<Response<Void, List<String>>> mPendingResponses = new ArrayList<>();
+
+    /** The canned responses, or null until the startup load has completed. */
+    private volatile List<String> mCannedTextMessages;
+
+    private Context mContext;
+
     public static RespondViaSmsManager getInstance() { return sInstance; }
 
     private RespondViaSmsManager() {}
 
     /**
-     * Read the (customizable) canned responses from SharedPreferences,
-     * or from defaults if the user has never actually brought up
-     * the Settings UI.
+     * Starts loading the canned responses so that they are ready before the first incoming call.
+     * The responses are then kept in memory and only re-read when they are changed, either in
+     * this process or by {@link RespondViaSmsSettings.Settings} in the UI process.
      *
-     * The interface of this method is asynchronous since it does disk I/O.
-     *
-     * @param response An object to receive an async reply, which will be called from
-     *                 the main thread.
      * @param context The context.
      */
-    public void loadCannedTextMessages(final Response<Void, List<String>> response,
-            final Context context) {
+    void initialize(Context context) {
+        if (mContext != null) {
+            return;
+        }
+        mContext = context;
+        startLoadingCannedTextMessages();
+    }
+
+    private void startLoadingCannedTextMessages() {
+        final Context context = mContext;
         new Thread() {
             @Override
             public void run() {
@@ -134,13 +167,65 @@ public class RespondViaSmsManager extends CallsManagerListenerBase {
                         textMessages.toString());
 
                 SomeArgs args = SomeArgs.obtain();
-                args.arg1 = response;
+                args.arg1 = prefs;
                 args.arg2 = textMessages;
                 mHandler.obtainMessage(MSG_CANNED_TEXT_MESSAGES_READY, args).sendToTarget();
             }
         }.start();
     }
 
+    /**
+     * Gets the (customizable) canned responses. These are read from SharedPreferences, or from
+     * defaults if the user has never actually brought up the Settings UI, once at startup and
+     * then kept in memory.
+     *
+     * Once the startup load has completed the response is called synchronously. Until then it is
+     * queued and called from the main thread when the load completes.
+     *
+     * @param response An object to receive the reply, which will be called from the main thread.
+     * @param context The context.
+     */
+    public void loadCannedTextMessages(final Response<Void, List<String>> response,
+            final Context context) {
+        initialize(context);
+        List<String> textMessages = mCannedTextMessages;
+        if (textMessages != null) {
+            response.onResult(null, textMessages);
+        } else {
+            Log.d(this, "loadCannedTextMessages: waiting for startup load");
+            mPendingResponses.add(response);
+        }
+    }
+
+    /**
+     * Updates a canned response after it was changed by {@link RespondViaSmsSettings.Settings}.
+     * The new value is passed along rather than re-read since the settings process may not have
+     * written it to disk yet.
+     *
+     * @param key The preference key of the changed response.
+     * @param textMessage The new text of the response.
+     */
+    void onCannedTextMessageChanged(String key, String textMessage) {
+        int index = getCannedResponseIndex(key);
+        List<String> textMessages = mCannedTextMessages;
+        if (index < 0 || textMessage == null || textMessages == null) {
+            return;
+        }
+        Log.d(this, "onCannedTextMessageChanged: %s", key);
+        ArrayList<String> newTextMessages = new ArrayList<>(textMessages);
+        newTextMessages.set(index, textMessage);
+        mCannedTextMessages = Collections.unmodifiableList(newTextMessages);
+    }
+
+    private static int getCannedResponseIndex(String key) {
+        for (int i = 0; i < CANNED_RESPONSE_KEYS.length; i++) {
+            if (CANNED_RESPONSE_KEYS[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     @Override
     public void onIncomingCallRejected(Call call, boolean rejectWithMessage, String textMessage) {
         if (call != null && rejectWithMessage) {
@@ -19,6 +19,7 @@ package com.android.server.telecom;
 import android.app.ActionBar;
 import android.app.Activity;
 import android.content.Context;
+import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.preference.EditTextPreference;
@@ -115,6 +116,14 @@ public class RespondViaSmsSettings {
             // rather than pref.getText().)
             pref.setTitle((String) newValue);
 
+            // Telecom keeps the responses in memory in another process, so pass the new value
+            // along rather than waiting for it to be read back from disk.
+            Intent intent = new Intent(TelecomBroadcastReceiver.ACTION_CANNED_RESPONSE_CHANGED,
+                    null, this, TelecomBroadcastReceiver.class);
+            intent.putExtra(TelecomBroadcastReceiver.EXTRA_CANNED_RESPONSE_KEY, pref.getKey());
+            intent.putExtra(TelecomBroadcastReceiver.EXTRA_CANNED_RESPONSE_TEXT, (String) newValue);
+            sendBroadcast(intent);
+
             return true;  // means it's OK to update the state of the Preference with the new value
         }
 
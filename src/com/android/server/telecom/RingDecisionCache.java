@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.provider.Settings;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Caches whether an incoming call from a contact should ring, as decided by the notification
+ * manager's call filter (Do Not Disturb priority callers). The decision needs a binder call and,
+ * with Do Not Disturb on, a contacts provider query, so it is made on a background thread as soon
+ * as the caller info lookup of an incoming call completes, and {@link Ringer} then reads the
+ * result without I/O.
+ *
+ * Entries are keyed by contact URI and remember the Do Not Disturb mode they were made in. The
+ * cache is cleared whenever contacts or the Do Not Disturb mode change. Changes to the set of
+ * priority callers are not broadcast, so entries also expire after
+ * {@link Timeouts#getRingDecisionCacheTtlMillis}.
+ *
+ * Methods are synchronized since decisions are stored from the background thread.
+ */
+final class RingDecisionCache {
+    private static final int MAX_ENTRIES = 32;
+
+    private static final class Entry {
+        final boolean shouldRing;
+        final int zenMode;
+        final long createdMillis;
+
+        Entry(boolean shouldRing, int zenMode, long createdMillis) {
+            this.shouldRing = shouldRing;
+            this.zenMode = zenMode;
+            this.createdMillis = createdMillis;
+        }
+    }
+
+    private final Map<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    /** Contact URIs with a decision being made on the background thread. */
+    private final Set<String> mPendingKeys = new HashSet<>();
+
+    private final ContentObserver mObserver =
+            new ContentObserver(new Handler(Looper.getMainLooper())) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    Log.v(RingDecisionCache.this, "Contacts or zen mode changed, clearing cache");
+                    clear();
+                }
+            };
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private int mGeneration;
+    private long mHits;
+    private long mMisses;
+    private long mPrefetches;
+
+    RingDecisionCache(Context context) {
+        mContext = context;
+        ContentResolver contentResolver = context.getContentResolver();
+        contentResolver.registerContentObserver(
+                ContactsContract.AUTHORITY_URI, true /* notifyForDescendents */, mObserver);
+        contentResolver.registerContentObserver(
+                Settings.Global.getUriFor(Settings.Global.ZEN_MODE), false, mObserver);
+
+        HandlerThread thread = new HandlerThread("ring-decision");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Starts making the decision for the specified contact in the background, unless a fresh one
+     * is already cached or being made.
+     *
+     * @param contactUri The contact URI of an incoming call, see {@link Call#getContactUri}.
+     */
+    synchronized void prefetch(final Uri contactUri) {
+        final String key = String.valueOf(contactUri);
+        final int zenMode = getZenMode();
+        if (getFreshEntry(key, zenMode) != null || !mPendingKeys.add(key)) {
+            return;
+        }
+        mPrefetches++;
+        final int generation = mGeneration;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                boolean shouldRing = matchesCallFilter(contactUri);
+                synchronized (RingDecisionCache.this) {
+                    mPendingKeys.remove(key);
+                    if (generation == mGeneration) {
+                        mEntries.put(key, new Entry(
+                                shouldRing, zenMode, SystemClock.elapsedRealtime()));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns whether a call from the specified contact should ring. Uses the cached decision if
+     * there is a fresh one, otherwise makes and caches the decision synchronously.
+     *
+     * @param contactUri The contact URI of the ringing call, see {@link Call#getContactUri}.
+     * @return True if the call should ring.
+     */
+    boolean shouldRing(Uri contactUri) {
+        String key = String.valueOf(contactUri);
+        int zenMode = getZenMode();
+        int generation;
+        synchronized (this) {
+            Entry entry = getFreshEntry(key, zenMode);
+            if (entry != null) {
+                mHits++;
+                return entry.shouldRing;
+            }
+            mMisses++;
+            generation = mGeneration;
+        }
+
+        // Make the binder call outside the lock so a slow call filter cannot block prefetches.
+        boolean shouldRing = matchesCallFilter(contactUri);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mEntries.put(key, new Entry(shouldRing, zenMode, SystemClock.elapsedRealtime()));
+            }
+        }
+        return shouldRing;
+    }
+
+    /** Drops all cached decisions, including any being made. */
+    synchronized void clear() {
+        mGeneration++;
+        mEntries.clear();
+    }
+
+    private Entry getFreshEntry(String key, int zenMode) {
+        Entry entry = mEntries.get(key);
+        if (entry != null && (entry.zenMode != zenMode
+                || SystemClock.elapsedRealtime() - entry.createdMillis
+                        > Timeouts.getRingDecisionCacheTtlMillis(mContext.getContentResolver()))) {
+            mEntries.remove(key);
+            entry = null;
+        }
+        return entry;
+    }
+
+    private int getZenMode() {
+        return Settings.Global.getInt(mContext.getContentResolver(), Settings.Global.ZEN_MODE,
+                Settings.Global.ZEN_MODE_OFF);
+    }
+
+    private boolean matchesCallFilter(Uri contactUri) {
+        final NotificationManager manager =
+                (NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE);
+        final Bundle extras = new Bundle();
+        if (contactUri != null) {
+            extras.putStringArray(Notification.EXTRA_PEOPLE, new String[] {contactUri.toString()});
+        }
+        return manager.matchesCallFilter(extras);
+    }
+
+    /**
+     * Dumps the state of the {@link RingDecisionCache}.
+     *
+     * @param pw The {@code IndentingPrintWriter} to write the state to.
+     */
+    synchronized void dump(IndentingPrintWriter pw) {
+        pw.println("entries: " + mEntries.size() + ", hits: " + mHits + ", misses: " + mMisses
+                + ", prefetches: " + mPrefetches + ", clears: " + mGeneration);
+    }
+}
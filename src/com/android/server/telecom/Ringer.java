@@ -16,21 +16,22 @@
 
 package com.android.server.telecom;
 
-import android.app.Notification;
-import android.app.NotificationManager;
 import android.content.Context;
 import android.media.AudioAttributes;
 import android.media.AudioManager;
-import android.net.Uri;
-import android.os.Bundle;
+import android.os.SystemClock;
 import android.os.SystemVibrator;
 import android.os.Vibrator;
 import android.provider.Settings;
 import android.telecom.CallState;
 import android.telephony.SubscriptionManager;
 
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Controls the ringtone player.
@@ -58,6 +59,9 @@ final class Ringer extends CallsManagerListenerBase {
      */
     private final List<Call> mRingingCalls = new LinkedList<>();
 
+    /** When each call in {@link #mRingingCalls} was added, to measure how long it takes to ring. */
+    private final Map<Call, Long> mRingingCallAddedNanos = new HashMap<>();
+
     private final CallAudioManager mCallAudioManager;
     private final CallsManager mCallsManager;
     private final InCallTonePlayer.Factory mPlayerFactory;
@@ -95,6 +99,7 @@ final class Ringer extends CallsManagerListenerBase {
                 Log.wtf(this, "New ringing call is already in list of unanswered calls");
             }
             mRingingCalls.add(call);
+            mRingingCallAddedNanos.put(call, SystemClock.elapsedRealtimeNanos());
             updateRinging();
         }
     }
@@ -135,6 +140,7 @@ final class Ringer extends CallsManagerListenerBase {
     void silence() {
         // Remove all calls from the "ringing" set and then update the ringer.
         mRingingCalls.clear();
+        mRingingCallAddedNanos.clear();
         updateRinging();
     }
 
@@ -156,6 +162,7 @@ final class Ringer extends CallsManagerListenerBase {
      */
     private void removeFromUnansweredCall(Call call) {
         mRingingCalls.remove(call);
+        mRingingCallAddedNanos.remove(call);
         updateRinging();
     }
 
@@ -176,7 +183,8 @@ final class Ringer extends CallsManagerListenerBase {
             // The foreground call is one of incoming calls so play the ringer out loud.
             stopCallWaiting();
 
-            if (!shouldRingForContact(foregroundCall.getContactUri())) {
+            if (!mCallsManager.getRingDecisionCache().shouldRing(
+                    foregroundCall.getContactUri())) {
                 return;
             }
 
@@ -197,7 +205,9 @@ final class Ringer extends CallsManagerListenerBase {
                 } catch (NumberFormatException e) {
                     Log.w(this,"Subid is not a number " + e);
                 }
-                mRingtonePlayer.play(foregroundCall.getRingtone());
+                Long callAddedNanos = mRingingCallAddedNanos.get(foregroundCall);
+                mRingtonePlayer.play(foregroundCall.getRingtone(),
+                        callAddedNanos != null ? callAddedNanos : 0);
             } else {
                 Log.v(this, "startRingingOrCallWaiting, skipping because volume is 0");
             }
@@ -225,16 +235,6 @@ final class Ringer extends CallsManagerListenerBase {
         }
     }
 
-    private boolean shouldRingForContact(Uri contactUri) {
-        final NotificationManager manager =
-                (NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE);
-        final Bundle extras = new Bundle();
-        if (contactUri != null) {
-            extras.putStringArray(Notification.EXTRA_PEOPLE, new String[] {contactUri.toString()});
-        }
-        return manager.matchesCallFilter(extras);
-    }
-
     private void stopRinging() {
         Log.v(this, "stopRinging");
 
@@ -275,4 +275,16 @@ final class Ringer extends CallsManagerListenerBase {
         return Settings.System.getInt(context.getContentResolver(),
                 Settings.System.VIBRATE_WHEN_RINGING, 0) != 0;
     }
+
+    /**
+     * Dumps the state of the {@link Ringer}.
+     *
+     * @param pw The {@code IndentingPrintWriter} to write the state to.
+     */
+    void dump(IndentingPrintWriter pw) {
+        pw.println("mRingtonePlayer:");
+        pw.increaseIndent();
+        mRingtonePlayer.dump(pw);
+        pw.decreaseIndent();
+    }
 }
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.content.ComponentName;
+import android.os.SystemClock;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tracks bind latency, bind failures and service deaths per {@link ComponentName} for
+ * {@link ServiceBinder}, and acts as a circuit breaker for components which keep failing: after
+ * {@link #FAILURE_THRESHOLD} consecutive failures further binds are refused for a backoff period
+ * which doubles on each trip, up to {@link #MAX_BACKOFF_MILLIS}. Once the backoff expires one bind
+ * is let through; success closes the breaker and failure opens it again.
+ *
+ * Updates happen on the main thread and {@link #dump} runs on a binder thread, so all access to
+ * the stats is guarded by {@link #mLock}.
+ */
+final class ServiceBindTracker {
+    /** Consecutive failures after which the breaker opens. */
+    private static final int FAILURE_THRESHOLD = 3;
+
+    private static final long INITIAL_BACKOFF_MILLIS = 1000L;
+    private static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000L;
+
+    private static final ServiceBindTracker INSTANCE = new ServiceBindTracker();
+
+    /** Statistics and breaker state for one component. */
+    private static final class ComponentStats {
+        int bindCount;
+        int failureCount;
+        int deathCount;
+        long totalBindLatencyMillis;
+        long maxBindLatencyMillis;
+        int consecutiveFailures;
+        int tripCount;
+        long openUntilMillis;
+    }
+
+    private final Object mLock = new Object();
+
+    /** Guarded by {@link #mLock}. */
+    private final Map<ComponentName, ComponentStats> mStats = new HashMap<>();
+
+    static ServiceBindTracker getInstance() {
+        return INSTANCE;
+    }
+
+    private ServiceBindTracker() {}
+
+    /**
+     * @return True if the breaker for the component is open and a bind should fail immediately.
+     */
+    boolean isBindBlocked(ComponentName componentName) {
+        synchronized (mLock) {
+            ComponentStats stats = mStats.get(componentName);
+            return stats != null && SystemClock.elapsedRealtime() < stats.openUntilMillis;
+        }
+    }
+
+    /** Records a bind which connected after the specified latency. */
+    void onBindSucceeded(ComponentName componentName, long latencyMillis) {
+        synchronized (mLock) {
+            ComponentStats stats = getStats(componentName);
+            stats.bindCount++;
+            stats.totalBindLatencyMillis += latencyMillis;
+            stats.maxBindLatencyMillis = Math.max(stats.maxBindLatencyMillis, latencyMillis);
+            stats.consecutiveFailures = 0;
+            stats.tripCount = 0;
+            stats.openUntilMillis = 0;
+        }
+    }
+
+    /** Records a bind which could not be started. */
+    void onBindFailed(ComponentName componentName) {
+        synchronized (mLock) {
+            ComponentStats stats = getStats(componentName);
+            stats.failureCount++;
+            onFailure(componentName, stats);
+        }
+    }
+
+    /** Records a bound service which disconnected, normally because its process died. */
+    void onServiceDied(ComponentName componentName) {
+        synchronized (mLock) {
+            ComponentStats stats = getStats(componentName);
+            stats.deathCount++;
+            onFailure(componentName, stats);
+        }
+    }
+
+    /** Must be called with {@link #mLock} held. */
+    private void onFailure(ComponentName componentName, ComponentStats stats) {
+        stats.consecutiveFailures++;
+        if (stats.consecutiveFailures >= FAILURE_THRESHOLD) {
+            long backoffMillis = Math.min(MAX_BACKOFF_MILLIS,
+                    INITIAL_BACKOFF_MILLIS << Math.min(stats.tripCount, 20));
+            stats.tripCount++;
+            stats.openUntilMillis = SystemClock.elapsedRealtime() + backoffMillis;
+            Log.w(this, "Blocking binds to %s for %d ms after %d failures", componentName,
+                    backoffMillis, stats.consecutiveFailures);
+        }
+    }
+
+    /** Must be called with {@link #mLock} held. */
+    private ComponentStats getStats(ComponentName componentName) {
+        ComponentStats stats = mStats.get(componentName);
+        if (stats == null) {
+            stats = new ComponentStats();
+            mStats.put(componentName, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Dumps the state of the {@link ServiceBindTracker}.
+     *
+     * @param pw The {@code IndentingPrintWriter} to write the state to.
+     */
+    void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            long now = SystemClock.elapsedRealtime();
+            for (Map.Entry<ComponentName, ComponentStats> entry : mStats.entrySet()) {
+                ComponentStats stats = entry.getValue();
+                long openMillis = stats.openUntilMillis - now;
+                pw.println(entry.getKey().flattenToShortString()
+                        + " binds=" + stats.bindCount
+                        + " avgBindMillis=" + (stats.bindCount == 0
+                                ? 0 : stats.totalBindLatencyMillis / stats.bindCount)
+                        + " maxBindMillis=" + stats.maxBindLatencyMillis
+                        + " failures=" + stats.failureCount
+                        + " deaths=" + stats.deathCount
+                        + " consecutiveFailures=" + stats.consecutiveFailures
+                        + " breaker=" + (openMillis > 0 ? "open for " + openMillis + " ms"
+                                : stats.tripCount > 0 ? "half-open" : "closed"));
+            }
+        }
+    }
+}
@@ -23,6 +23,7 @@ import android.content.ServiceConnection;
 import android.os.IBinder;
 import android.os.IInterface;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserHandle;
 
 import com.android.internal.util.Preconditions;
@@ -56,6 +57,24 @@ abstract class ServiceBinder<ServiceInterface extends IInterface> {
         void onUnbind(ServiceBinderClass serviceBinder);
     }
 
+    /**
+     * Policy which may keep a binding alive after its last associated call goes away.
+     */
+    interface KeepAlive {
+        /**
+         * Called when the associated call count drops to zero while bound.
+         *
+         * @return True if the keep-alive takes responsibility for unbinding later, false to
+         *         unbind immediately.
+         */
+        boolean retainIdleBinding(ServiceBinder<?> serviceBinder);
+
+        /**
+         * Called when the associated call count rises from zero.
+         */
+        void onBindingInUse(ServiceBinder<?> serviceBinder);
+    }
+
     /**
      * Helper class to perform on-demand binding.
      */
@@ -67,6 +86,19 @@ abstract class ServiceBinder<ServiceInterface extends IInterface> {
          * @param callback The callback to notify of the binding's success or failure.
          */
         void bind(BindCallback callback) {
+            bind(callback, false /* ignoreCircuitBreaker */);
+        }
+
+        /**
+         * Performs an asynchronous bind to the service (only if not already bound) and executes the
+         * specified callback.
+         *
+         * @param callback The callback to notify of the binding's success or failure.
+         * @param ignoreCircuitBreaker Whether to attempt the bind even if recent binds to the
+         *         component have kept failing, see {@link ServiceBindTracker}. The telephony
+         *         connection service is always bound regardless.
+         */
+        void bind(BindCallback callback, boolean ignoreCircuitBreaker) {
             ThreadUtil.checkOnMainThread();
             Log.d(ServiceBinder.this, "bind()");
 
@@ -81,6 +113,17 @@ abstract class ServiceBinder<ServiceInterface extends IInterface> {
 
             mCallbacks.add(callback);
             if (mServiceConnection == null) {
+                // The built-in telephony connection service carries SIM calls, including the
+                // emergency fallback, so it is never refused.
+                if (!ignoreCircuitBreaker
+                        && !TelephonyUtil.isPstnComponentName(mComponentName)
+                        && ServiceBindTracker.getInstance().isBindBlocked(mComponentName)) {
+                    Log.w(ServiceBinder.this, "Not binding to %s, too many recent failures",
+                            mComponentName);
+                    handleFailedConnection();
+                    return;
+                }
+                mBindStartMillis = SystemClock.elapsedRealtime();
                 Intent serviceIntent = new Intent(mServiceAction).setComponent(mComponentName);
                 ServiceConnection connection = new ServiceBinderConnection();
 
@@ -94,6 +137,7 @@ abstract class ServiceBinder<ServiceInterface extends IInterface> {
                         Context.BIND_AUTO_CREATE);
                 }
                 if (!binding) {
+                    ServiceBindTracker.getInstance().onBindFailed(mComponentName);
                     handleFailedConnection();
                     return;
                 }
@@ -120,6 +164,9 @@ abstract class ServiceBinder<ServiceInterface extends IInterface> {
                 return;
             }
 
+            mLastBindLatencyMillis = SystemClock.elapsedRealtime() - mBindStartMillis;
+            ServiceBindTracker.getInstance().onBindSucceeded(mComponentName,
+                    mLastBindLatencyMillis);
             mServiceConnection = this;
             setBinder(binder);
             handleSuccessfulConnection();
@@ -128,6 +175,7 @@ abstract class ServiceBinder<ServiceInterface extends IInterface> {
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
             logServiceDisconnected("onServiceDisconnected");
+            ServiceBindTracker.getInstance().onServiceDied(mComponentName);
 
             mServiceConnection = null;
             clearAbort();
@@ -159,6 +207,15 @@ abstract class ServiceBinder<ServiceInterface extends IInterface> {
 
     private int mAssociatedCallCount = 0;
 
+    /** Optional policy for keeping the binding alive once idle. */
+    private KeepAlive mKeepAlive;
+
+    /** Time at which the last {@link Context#bindService} was issued. */
+    private long mBindStartMillis;
+
+    /** Time taken by the last bind to reach {@link ServiceConnection#onServiceConnected}. */
+    private long mLastBindLatencyMillis;
+
     /**
      * Indicates that an unbind request was made when the service was not yet bound. If the service
      * successfully connects when this is true, it should be unbound immediately.
@@ -195,6 +252,9 @@ abstract class ServiceBinder<ServiceInterface extends IInterface> {
 
     final void incrementAssociatedCallCount() {
         mAssociatedCallCount++;
+        if (mAssociatedCallCount == 1 && mKeepAlive != null) {
+            mKeepAlive.onBindingInUse(this);
+        }
         Log.v(this, "Call count increment %d, %s", mAssociatedCallCount,
                 mComponentName.flattenToShortString());
     }
@@ -206,7 +266,9 @@ abstract class ServiceBinder<ServiceInterface extends IInterface> {
                     mComponentName.flattenToShortString());
 
             if (mAssociatedCallCount == 0) {
-                unbind();
+                if (mKeepAlive == null || !isBound() || !mKeepAlive.retainIdleBinding(this)) {
+                    unbind();
+                }
             }
         } else {
             Log.wtf(this, "%s: ignoring a request to decrement mAssociatedCallCount below zero",
@@ -235,6 +297,21 @@ abstract class ServiceBinder<ServiceInterface extends IInterface> {
         }
     }
 
+    final boolean isBound() {
+        return mServiceConnection != null;
+    }
+
+    final void setKeepAlive(KeepAlive keepAlive) {
+        mKeepAlive = keepAlive;
+    }
+
+    /**
+     * @return How long the most recent bind took to connect, in milliseconds.
+     */
+    final long getLastBindLatencyMillis() {
+        return mLastBindLatencyMillis;
+    }
+
     final ComponentName getComponentName() {
         return mComponentName;
     }
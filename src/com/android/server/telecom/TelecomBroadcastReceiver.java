@@ -38,6 +38,18 @@ public final class TelecomBroadcastReceiver extends BroadcastReceiver {
     static final String ACTION_CLEAR_MISSED_CALLS =
             "com.android.server.telecom.ACTION_CLEAR_MISSED_CALLS";
 
+    /** The action used to report a canned SMS response edited in the settings UI. */
+    static final String ACTION_CANNED_RESPONSE_CHANGED =
+            "com.android.server.telecom.ACTION_CANNED_RESPONSE_CHANGED";
+
+    /** The preference key of the changed canned SMS response. */
+    static final String EXTRA_CANNED_RESPONSE_KEY =
+            "com.android.server.telecom.EXTRA_CANNED_RESPONSE_KEY";
+
+    /** The new text of the changed canned SMS response. */
+    static final String EXTRA_CANNED_RESPONSE_TEXT =
+            "com.android.server.telecom.EXTRA_CANNED_RESPONSE_TEXT";
+
     /** {@inheritDoc} */
     @Override
     public void onReceive(Context context, Intent intent) {
@@ -71,6 +83,12 @@ public final class TelecomBroadcastReceiver extends BroadcastReceiver {
         // Clear the missed call notification and call log entries.
         } else if (ACTION_CLEAR_MISSED_CALLS.equals(action)) {
             missedCallNotifier.clearMissedCalls();
+
+        // Update the in-memory copy of the canned SMS responses.
+        } else if (ACTION_CANNED_RESPONSE_CHANGED.equals(action)) {
+            RespondViaSmsManager.getInstance().onCannedTextMessageChanged(
+                    intent.getStringExtra(EXTRA_CANNED_RESPONSE_KEY),
+                    intent.getStringExtra(EXTRA_CANNED_RESPONSE_TEXT));
         }
     }
 
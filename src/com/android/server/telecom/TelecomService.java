@@ -18,14 +18,11 @@ package com.android.server.telecom;
 
 import android.Manifest;
 import android.annotation.SdkConstant;
-import android.app.AppOpsManager;
 import android.app.Service;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
-import android.content.res.Resources;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
@@ -33,8 +30,10 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
-import android.os.UserManager;
 import android.telecom.CallState;
 import android.telecom.PhoneAccount;
 import android.telecom.PhoneAccountHandle;
@@ -51,6 +50,9 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implementation of the ITelecom interface.
@@ -66,14 +68,72 @@ public class TelecomService extends Service {
     private Context mContext;
 
     /**
-     * A request object for use with {@link MainThreadHandler}. Requesters should wait() on the
-     * request after sending. The main thread will notify the request when it is complete.
+     * A request object for use with {@link MainThreadHandler}. Requesters should {@link #await}
+     * the request after sending. The main thread completes the request when it has been handled,
+     * whether or not the command produced a result. A requester which stops waiting {@link
+     * #cancel}s the request so that the main thread does not run it afterwards.
      */
     private static final class MainThreadRequest {
         /** The result of the request that is run on the main thread */
-        public Object result;
+        public volatile Object result;
         /** Object that can be used to store non-integer arguments */
         public Object arg;
+        /** Time the main thread spent handling the request, in microseconds. */
+        public volatile long handleMicros;
+
+        private static final int STATE_PENDING = 0;
+        private static final int STATE_STARTED = 1;
+        private static final int STATE_CANCELLED = 2;
+
+        private final CountDownLatch mCompleted = new CountDownLatch(1);
+        private final AtomicInteger mState = new AtomicInteger(STATE_PENDING);
+
+        /**
+         * Called by the main thread before handling the request.
+         *
+         * @return {@code false} if the request was cancelled and must not be handled.
+         */
+        boolean start() {
+            return mState.compareAndSet(STATE_PENDING, STATE_STARTED);
+        }
+
+        /**
+         * Called by the requester when it stops waiting.
+         *
+         * @return {@code true} if the request will not be handled, {@code false} if the main
+         *         thread has already started handling it.
+         */
+        boolean cancel() {
+            return mState.compareAndSet(STATE_PENDING, STATE_CANCELLED);
+        }
+
+        void complete(Object result, long handleMicros) {
+            this.result = result;
+            this.handleMicros = handleMicros;
+            mCompleted.countDown();
+        }
+
+        /**
+         * Waits for the request to be completed by the main thread.
+         *
+         * @param timeoutMillis The longest time to wait.
+         * @return {@code true} if the request completed, {@code false} if the deadline passed.
+         */
+        boolean await(long timeoutMillis) {
+            long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+            while (true) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    return mCompleted.getCount() == 0;
+                }
+                try {
+                    return mCompleted.await(remaining, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // Do nothing, go back and wait until the request is complete or the deadline
+                    // passes.
+                }
+            }
+        }
     }
 
     /**
@@ -86,45 +146,57 @@ public class TelecomService extends Service {
         public void handleMessage(Message msg) {
             if (msg.obj instanceof MainThreadRequest) {
                 MainThreadRequest request = (MainThreadRequest) msg.obj;
+                if (!request.start()) {
+                    Log.d(TelecomService.this, "Skipping cancelled request %s",
+                            REQUEST_NAMES[msg.what]);
+                    return;
+                }
+                long startNanos = SystemClock.elapsedRealtimeNanos();
                 Object result = null;
-                switch (msg.what) {
-                    case MSG_SILENCE_RINGER:
-                        mCallsManager.getRinger().silence();
-                        break;
-                    case MSG_SHOW_CALL_SCREEN:
-                        mCallsManager.getInCallController().bringToForeground(msg.arg1 == 1);
-                        break;
-                    case MSG_END_CALL:
-                        result = endCallInternal();
-                        break;
-                    case MSG_ACCEPT_RINGING_CALL:
-                        acceptRingingCallInternal();
-                        break;
-                    case MSG_CANCEL_MISSED_CALLS_NOTIFICATION:
-                        mMissedCallNotifier.clearMissedCalls();
-                        break;
-                    case MSG_IS_TTY_SUPPORTED:
-                        result = mCallsManager.isTtySupported();
-                        break;
-                    case MSG_GET_CURRENT_TTY_MODE:
-                        result = mCallsManager.getCurrentTtyMode();
-                        break;
-                    case MSG_NEW_INCOMING_CALL:
-                        if (request.arg == null || !(request.arg instanceof Intent)) {
-                            Log.w(this, "Invalid new incoming call request");
-                            break;
-                        }
-                        CallReceiver.processIncomingCallIntent((Intent) request.arg);
-                        break;
+                try {
+                    result = handleRequest(msg, request);
+                } finally {
+                    // Always complete the request, even when the command has no result or throws,
+                    // so that a waiting binder thread is released.
+                    request.complete(result,
+                            (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000);
                 }
+            }
+        }
 
-                if (result != null) {
-                    request.result = result;
-                    synchronized(request) {
-                        request.notifyAll();
+        private Object handleRequest(Message msg, MainThreadRequest request) {
+            Object result = null;
+            switch (msg.what) {
+                case MSG_SILENCE_RINGER:
+                    mCallsManager.getRinger().silence();
+                    break;
+                case MSG_SHOW_CALL_SCREEN:
+                    mCallsManager.getInCallController().bringToForeground(msg.arg1 == 1);
+                    break;
+                case MSG_END_CALL:
+                    result = endCallInternal();
+                    break;
+                case MSG_ACCEPT_RINGING_CALL:
+                    acceptRingingCallInternal();
+                    break;
+                case MSG_CANCEL_MISSED_CALLS_NOTIFICATION:
+                    mMissedCallNotifier.clearMissedCalls();
+                    break;
+                case MSG_IS_TTY_SUPPORTED:
+                    result = mCallsManager.isTtySupported();
+                    break;
+                case MSG_GET_CURRENT_TTY_MODE:
+                    result = mCallsManager.getCurrentTtyMode();
+                    break;
+                case MSG_NEW_INCOMING_CALL:
+                    if (request.arg == null || !(request.arg instanceof Intent)) {
+                        Log.w(this, "Invalid new incoming call request");
+                        break;
                     }
-                }
+                    CallReceiver.processIncomingCallIntent((Intent) request.arg);
+                    break;
             }
+            return result;
         }
     }
 
@@ -141,14 +213,43 @@ public class TelecomService extends Service {
     private static final int MSG_GET_CURRENT_TTY_MODE = 7;
     private static final int MSG_NEW_INCOMING_CALL = 8;
 
+    /** Display names for the request codes above, indexed by code. */
+    private static final String[] REQUEST_NAMES = {
+            null,
+            "SILENCE_RINGER",
+            "SHOW_CALL_SCREEN",
+            "END_CALL",
+            "ACCEPT_RINGING_CALL",
+            "CANCEL_MISSED_CALLS_NOTIFICATION",
+            "IS_TTY_SUPPORTED",
+            "GET_CURRENT_TTY_MODE",
+            "NEW_INCOMING_CALL",
+    };
+
+    /** Dump argument which clears the binder call statistics instead of dumping state. */
+    private static final String DUMP_ARG_RESET_BINDER_STATS = "--reset-binder-stats";
+
     private final MainThreadHandler mMainThreadHandler = new MainThreadHandler();
 
+    /**
+     * How long binder threads waited on synchronous main thread requests, per request code. The
+     * wait covers both time queued behind other main thread work and time spent handling.
+     * Guarded by itself since it is written from binder threads.
+     */
+    private final MessageLatencyStats mRequestStats = new MessageLatencyStats(REQUEST_NAMES);
+
+    /** Number of synchronous requests which passed their deadline, per request code. */
+    private final long[] mRequestTimeouts = new long[REQUEST_NAMES.length];
+
+    private final BinderCallStats mBinderCallStats =
+            new BinderCallStats(BinderCallStats.getTransactionNames(ITelecomService.Stub.class));
+
     private CallsManager mCallsManager;
     private MissedCallNotifier mMissedCallNotifier;
     private PhoneAccountRegistrar mPhoneAccountRegistrar;
-    private AppOpsManager mAppOpsManager;
-    private UserManager mUserManager;
     private PackageManager mPackageManager;
+    private CallerPrivilegeCache mPrivilegeCache;
+    private IncomingCallAdmissionController mIncomingCallAdmissionController;
     private TelecomServiceImpl mServiceImpl;
 
     @Override
@@ -157,7 +258,6 @@ public class TelecomService extends Service {
 
         Log.d(this, "onCreate");
         mContext = this;
-        mAppOpsManager = (AppOpsManager) mContext.getSystemService(Context.APP_OPS_SERVICE);
         mServiceImpl = new TelecomServiceImpl();
 
         TelecomGlobals globals = TelecomGlobals.getInstance();
@@ -166,8 +266,10 @@ public class TelecomService extends Service {
         mMissedCallNotifier = globals.getMissedCallNotifier();
         mPhoneAccountRegistrar = globals.getPhoneAccountRegistrar();
         mCallsManager = globals.getCallsManager();
-        mUserManager = (UserManager) mContext.getSystemService(Context.USER_SERVICE);
         mPackageManager = mContext.getPackageManager();
+        mPrivilegeCache = new CallerPrivilegeCache(mContext);
+        mIncomingCallAdmissionController =
+                new IncomingCallAdmissionController(mContext.getContentResolver());
     }
 
     @Override
@@ -181,6 +283,17 @@ public class TelecomService extends Service {
      * TODO: Reorganize this inner class to top of file.
      */
     class TelecomServiceImpl extends ITelecomService.Stub {
+        @Override
+        public boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+                throws RemoteException {
+            long startNanos = mBinderCallStats.onCallStarted();
+            try {
+                return super.onTransact(code, data, reply, flags);
+            } finally {
+                mBinderCallStats.onCallFinished(code, startNanos);
+            }
+        }
+
         @Override
         public PhoneAccountHandle getDefaultOutgoingPhoneAccount(String uriScheme) {
             enforceReadPermission();
@@ -262,6 +375,35 @@ public class TelecomService extends Service {
             }
         }
 
+        /**
+         * Returns the {@link PhoneAccount}s visible to the caller which have the specified
+         * capabilities and support the specified URI scheme, so that a dialer can fetch its
+         * accounts in one round trip instead of listing the handles and then fetching each
+         * account. Permission and visibility are evaluated once for the whole list.
+         *
+         * This method is internal to Telecom: ITelecomService does not declare it, so it is not
+         * reachable over binder until the framework interface and TelecomManager add it.
+         *
+         * @param capabilities {@link PhoneAccount} capabilities the accounts must all have.
+         * @param uriScheme URI scheme the accounts must support, or {@code null} for any.
+         */
+        public List<PhoneAccount> getPhoneAccounts(int capabilities, String uriScheme) {
+            try {
+                enforceReadPermission();
+                List<UserHandle> profileUserHandles = getCallerProfiles();
+                long token = Binder.clearCallingIdentity();
+                try {
+                    return mPhoneAccountRegistrar.getPhoneAccounts(capabilities, uriScheme,
+                            profileUserHandles);
+                } finally {
+                    Binder.restoreCallingIdentity(token);
+                }
+            } catch (Exception e) {
+                Log.e(this, e, "getPhoneAccounts %d %s", capabilities, uriScheme);
+                throw e;
+            }
+        }
+
         @Override
         public List<PhoneAccountHandle> getPhoneAccountsForPackage(String packageName) {
             try {
@@ -490,10 +632,7 @@ public class TelecomService extends Service {
          */
         @Override
         public ComponentName getDefaultPhoneApp() {
-            Resources resources = mContext.getResources();
-            return new ComponentName(
-                    resources.getString(R.string.ui_default_package),
-                    resources.getString(R.string.dialer_default_class));
+            return mPrivilegeCache.getDefaultPhoneApp();
         }
 
         /**
@@ -504,7 +643,8 @@ public class TelecomService extends Service {
             enforceReadPermission();
             // Do not use sendRequest() with this method since it could cause a deadlock with
             // audio service, which we call into from the main thread: AudioManager.setMode().
-            final int callState = mCallsManager.getCallState();
+            // The snapshot is published by the main thread and is safe to read here.
+            final int callState = mCallsManager.getCallStateSnapshot().getTelephonyCallState();
             return callState == TelephonyManager.CALL_STATE_OFFHOOK
                     || callState == TelephonyManager.CALL_STATE_RINGING;
         }
@@ -515,7 +655,8 @@ public class TelecomService extends Service {
         @Override
         public boolean isRinging() {
             enforceReadPermission();
-            return mCallsManager.getCallState() == TelephonyManager.CALL_STATE_RINGING;
+            return mCallsManager.getCallStateSnapshot().getTelephonyCallState()
+                    == TelephonyManager.CALL_STATE_RINGING;
         }
 
         /**
@@ -523,7 +664,7 @@ public class TelecomService extends Service {
          */
         @Override
         public int getCallState() {
-            return mCallsManager.getCallState();
+            return mCallsManager.getCallStateSnapshot().getTelephonyCallState();
         }
 
         /**
@@ -532,7 +673,9 @@ public class TelecomService extends Service {
         @Override
         public boolean endCall() {
             enforceModifyPermission();
-            return (boolean) sendRequest(MSG_END_CALL);
+            return (boolean) sendRequest(MSG_END_CALL,
+                    Timeouts.getEndCallRequestTimeoutMillis(mContext.getContentResolver()),
+                    false /* fallback */);
         }
 
         /**
@@ -638,7 +781,9 @@ public class TelecomService extends Service {
         @Override
         public boolean isTtySupported() {
             enforceReadPermission();
-            return (boolean) sendRequest(MSG_IS_TTY_SUPPORTED);
+            return (boolean) sendRequest(MSG_IS_TTY_SUPPORTED,
+                    Timeouts.getTtyRequestTimeoutMillis(mContext.getContentResolver()),
+                    false /* fallback */);
         }
 
         /**
@@ -647,7 +792,9 @@ public class TelecomService extends Service {
         @Override
         public int getCurrentTtyMode() {
             enforceReadPermission();
-            return (int) sendRequest(MSG_GET_CURRENT_TTY_MODE);
+            return (int) sendRequest(MSG_GET_CURRENT_TTY_MODE,
+                    Timeouts.getTtyRequestTimeoutMillis(mContext.getContentResolver()),
+                    TelecomManager.TTY_MODE_OFF /* fallback */);
         }
 
         /**
@@ -657,12 +804,17 @@ public class TelecomService extends Service {
         public void addNewIncomingCall(PhoneAccountHandle phoneAccountHandle, Bundle extras) {
             Log.i(this, "Adding new incoming call with phoneAccountHandle %s", phoneAccountHandle);
             if (phoneAccountHandle != null && phoneAccountHandle.getComponentName() != null) {
-                mAppOpsManager.checkPackage(
-                        Binder.getCallingUid(), phoneAccountHandle.getComponentName().getPackageName());
+                enforceCallingPackage(phoneAccountHandle.getComponentName().getPackageName());
 
                 // Make sure it doesn't cross the UserHandle boundary
                 enforceUserHandleMatchesCaller(phoneAccountHandle);
 
+                if (!mIncomingCallAdmissionController.tryAdmit(phoneAccountHandle)) {
+                    Log.w(this, "Too many incoming call requests from %s, rejecting",
+                            phoneAccountHandle);
+                    return;
+                }
+
                 Intent intent = new Intent(TelecomManager.ACTION_INCOMING_CALL);
                 intent.putExtra(TelecomManager.EXTRA_PHONE_ACCOUNT_HANDLE, phoneAccountHandle);
                 intent.putExtra(CallReceiver.KEY_IS_INCOMING_CALL, true);
@@ -682,12 +834,17 @@ public class TelecomService extends Service {
         public void addNewUnknownCall(PhoneAccountHandle phoneAccountHandle, Bundle extras) {
             if (phoneAccountHandle != null && phoneAccountHandle.getComponentName() != null &&
                     TelephonyUtil.isPstnComponentName(phoneAccountHandle.getComponentName())) {
-                mAppOpsManager.checkPackage(
-                        Binder.getCallingUid(), phoneAccountHandle.getComponentName().getPackageName());
+                enforceCallingPackage(phoneAccountHandle.getComponentName().getPackageName());
 
                 // Make sure it doesn't cross the UserHandle boundary
                 enforceUserHandleMatchesCaller(phoneAccountHandle);
 
+                if (!mIncomingCallAdmissionController.tryAdmit(phoneAccountHandle)) {
+                    Log.w(this, "Too many unknown call requests from %s, rejecting",
+                            phoneAccountHandle);
+                    return;
+                }
+
                 Intent intent = new Intent(TelecomManager.ACTION_NEW_UNKNOWN_CALL);
                 intent.setClass(mContext, CallReceiver.class);
                 intent.setFlags(Intent.FLAG_RECEIVER_FOREGROUND);
@@ -736,6 +893,12 @@ public class TelecomService extends Service {
             }
 
             final IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
+            if (args != null && args.length > 0 && DUMP_ARG_RESET_BINDER_STATS.equals(args[0])) {
+                mBinderCallStats.reset();
+                pw.println("Binder call stats reset.");
+                return;
+            }
+
             if (mCallsManager != null) {
                 pw.println("mCallsManager: ");
                 pw.increaseIndent();
@@ -747,6 +910,33 @@ public class TelecomService extends Service {
                 mPhoneAccountRegistrar.dump(pw);
                 pw.decreaseIndent();
             }
+
+            pw.println("Main thread requests: ");
+            pw.increaseIndent();
+            synchronized (mRequestStats) {
+                mRequestStats.dump(pw);
+                for (int i = 0; i < mRequestTimeouts.length; i++) {
+                    if (mRequestTimeouts[i] > 0) {
+                        pw.println(REQUEST_NAMES[i] + " timeouts: " + mRequestTimeouts[i]);
+                    }
+                }
+            }
+            pw.decreaseIndent();
+
+            pw.println("Caller privilege cache: ");
+            pw.increaseIndent();
+            mPrivilegeCache.dump(pw);
+            pw.decreaseIndent();
+
+            pw.println("Incoming call admission: ");
+            pw.increaseIndent();
+            mIncomingCallAdmissionController.dump(pw);
+            pw.decreaseIndent();
+
+            pw.println("Binder calls (reset with " + DUMP_ARG_RESET_BINDER_STATS + "): ");
+            pw.increaseIndent();
+            mBinderCallStats.dump(pw, mPackageManager);
+            pw.decreaseIndent();
         }
     }
 
@@ -763,33 +953,17 @@ public class TelecomService extends Service {
     }
 
     private boolean isVisibleToCaller(PhoneAccount account) {
-        if (account == null) {
-            return false;
-        }
-
-        // If this PhoneAccount has CAPABILITY_MULTI_USER, it should be visible to all users and
-        // all profiles. Only Telephony and SIP accounts should have this capability.
-        if (account.hasCapabilities(PhoneAccount.CAPABILITY_MULTI_USER)) {
-            return true;
-        }
-
-        UserHandle phoneAccountUserHandle = account.getAccountHandle().getUserHandle();
-        if (phoneAccountUserHandle == null) {
-            return false;
-        }
-
-        List<UserHandle> profileUserHandles;
-        if (isCallerSystemApp()) {
-            // If the caller lives in /system/priv-app, it can see PhoneAccounts for all of the
-            // *profiles* that the calling user owns, but not for any other *users*.
-            profileUserHandles = mUserManager.getUserProfiles();
-        } else {
-            // Otherwise, it has to be owned by the current caller's profile.
-            profileUserHandles = new ArrayList<>(1);
-            profileUserHandles.add(Binder.getCallingUserHandle());
-        }
+        return PhoneAccountRegistrar.isVisibleToProfiles(account, getCallerProfiles());
+    }
 
-        return profileUserHandles.contains(phoneAccountUserHandle);
+    /**
+     * @return The user profiles whose {@link PhoneAccount}s the caller may see.
+     */
+    private List<UserHandle> getCallerProfiles() {
+        boolean isCallerSystemApp = isCallerSystemApp();
+        return PhoneAccountRegistrar.getProfilesVisibleToCaller(isCallerSystemApp,
+                Binder.getCallingUserHandle(),
+                isCallerSystemApp ? mPrivilegeCache.getUserProfiles() : null);
     }
 
     /**
@@ -802,10 +976,14 @@ public class TelecomService extends Service {
      */
     private List<PhoneAccountHandle> filterForAccountsVisibleToCaller(
             List<PhoneAccountHandle> phoneAccountHandles) {
+        // Work out which profiles the caller can see once rather than per account.
+        List<UserHandle> profileUserHandles = getCallerProfiles();
         List<PhoneAccountHandle> profilePhoneAccountHandles =
                 new ArrayList<>(phoneAccountHandles.size());
         for (PhoneAccountHandle phoneAccountHandle : phoneAccountHandles) {
-            if (isVisibleToCaller(phoneAccountHandle)) {
+            if (phoneAccountHandle != null && PhoneAccountRegistrar.isVisibleToProfiles(
+                    mPhoneAccountRegistrar.getPhoneAccountInternal(phoneAccountHandle),
+                    profileUserHandles)) {
                 profilePhoneAccountHandles.add(phoneAccountHandle);
             }
         }
@@ -813,26 +991,7 @@ public class TelecomService extends Service {
     }
 
     private boolean isCallerSystemApp() {
-        int uid = Binder.getCallingUid();
-        String[] packages = mPackageManager.getPackagesForUid(uid);
-        for (String packageName : packages) {
-            if (isPackageSystemApp(packageName)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private boolean isPackageSystemApp(String packageName) {
-        try {
-            ApplicationInfo applicationInfo = mPackageManager.getApplicationInfo(packageName,
-                    PackageManager.GET_META_DATA);
-            if ((applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0) {
-                return true;
-            }
-        } catch (PackageManager.NameNotFoundException e) {
-        }
-        return false;
+        return mPrivilegeCache.isSystemApp(Binder.getCallingUid());
     }
 
     private void acceptRingingCallInternal() {
@@ -897,7 +1056,10 @@ public class TelecomService extends Service {
     }
 
     private void enforceCallingPackage(String packageName) {
-        mAppOpsManager.checkPackage(Binder.getCallingUid(), packageName);
+        int uid = Binder.getCallingUid();
+        if (!mPrivilegeCache.isPackageOwnedBy(uid, packageName)) {
+            throw new SecurityException("Package " + packageName + " does not belong to " + uid);
+        }
     }
 
     private void enforceConnectionServiceFeature() {
@@ -925,7 +1087,11 @@ public class TelecomService extends Service {
     }
 
     private void enforcePermission(String permission) {
-        mContext.enforceCallingOrSelfPermission(permission, null);
+        int uid = Binder.getCallingUid();
+        if (!mPrivilegeCache.hasPermission(uid, Binder.getCallingPid(), permission)) {
+            throw new SecurityException(
+                    "Neither user " + uid + " nor current process has " + permission + ".");
+        }
     }
 
     private void enforceRegisterMultiUser() {
@@ -949,26 +1115,14 @@ public class TelecomService extends Service {
     }
 
     private boolean isDefaultDialerCalling() {
-        ComponentName defaultDialerComponent = getDefaultPhoneAppInternal();
+        ComponentName defaultDialerComponent = mPrivilegeCache.getDefaultPhoneApp();
         if (defaultDialerComponent != null) {
-            try {
-                mAppOpsManager.checkPackage(
-                        Binder.getCallingUid(), defaultDialerComponent.getPackageName());
-                return true;
-            } catch (SecurityException e) {
-                Log.e(TAG, e, "Could not get default dialer.");
-            }
+            return mPrivilegeCache.isPackageOwnedBy(
+                    Binder.getCallingUid(), defaultDialerComponent.getPackageName());
         }
         return false;
     }
 
-    private ComponentName getDefaultPhoneAppInternal() {
-        Resources resources = mContext.getResources();
-        return new ComponentName(
-                resources.getString(R.string.ui_default_package),
-                resources.getString(R.string.dialer_default_class));
-    }
-
     private TelephonyManager getTelephonyManager() {
         return (TelephonyManager)mContext.getSystemService(Context.TELEPHONY_SERVICE);
     }
@@ -986,27 +1140,54 @@ public class TelecomService extends Service {
 
     /**
      * Posts the specified command to be executed on the main thread, waits for the request to
-     * complete, and returns the result.
+     * complete, and returns the result. If the main thread has not started the request before the
+     * deadline, the request is cancelled and the fallback is returned so that the calling binder
+     * thread is never held indefinitely. The fallback is also returned if the request completes
+     * without a result.
+     *
+     * @param command The request code.
+     * @param timeoutMillis The longest time to wait for the main thread.
+     * @param fallback The value returned when no result is available.
      */
-    private Object sendRequest(int command) {
+    private Object sendRequest(int command, long timeoutMillis, Object fallback) {
         if (Looper.myLooper() == mMainThreadHandler.getLooper()) {
             MainThreadRequest request = new MainThreadRequest();
             mMainThreadHandler.handleMessage(mMainThreadHandler.obtainMessage(command, request));
-            return request.result;
-        } else {
-            MainThreadRequest request = sendRequestAsync(command, 0);
-
-            // Wait for the request to complete
-            synchronized (request) {
-                while (request.result == null) {
-                    try {
-                        request.wait();
-                    } catch (InterruptedException e) {
-                        // Do nothing, go back and wait until the request is complete
-                    }
-                }
+            return request.result != null ? request.result : fallback;
+        }
+
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        MainThreadRequest request = sendRequestAsync(command, 0);
+        boolean completed = request.await(timeoutMillis);
+        if (!completed) {
+            if (request.cancel()) {
+                // The command never ran and now never will, so the fallback is the true outcome.
+                mMainThreadHandler.removeMessages(command, request);
+            } else {
+                // The main thread is already running the command; its result must win over the
+                // fallback, since the command's side effects will happen either way.
+                completed = request.await(timeoutMillis);
             }
-            return request.result;
         }
+        long waitMicros = (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000;
+
+        synchronized (mRequestStats) {
+            mRequestStats.record(command, waitMicros, completed ? request.handleMicros : 0);
+            if (!completed) {
+                mRequestTimeouts[command]++;
+            }
+        }
+
+        if (!completed) {
+            Log.w(this, "Request %s did not complete within %d ms, returning %s",
+                    REQUEST_NAMES[command], timeoutMillis, fallback);
+            return fallback;
+        }
+        if (request.result == null) {
+            Log.w(this, "Request %s completed without a result, returning %s",
+                    REQUEST_NAMES[command], fallback);
+            return fallback;
+        }
+        return request.result;
     }
 }
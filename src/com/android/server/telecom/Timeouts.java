@@ -80,4 +80,108 @@ public final class Timeouts {
         return get(contentResolver, "delay_between_dtmf_tones_ms", 300L);
     }
 
+    /**
+     * Returns how long an idle connection service binding is kept alive after its last call ends,
+     * so that a redial or conference add can reuse it. A value of 0 or less disables keep-alive.
+     */
+    public static long getConnectionServiceKeepAliveMillis(ContentResolver contentResolver) {
+        return get(contentResolver, "connection_service_keep_alive_ms", 10000L /* 10 seconds */);
+    }
+
+    /**
+     * Returns the maximum number of idle connection service bindings kept alive at once.
+     */
+    public static int getConnectionServiceKeepAliveCount(ContentResolver contentResolver) {
+        return (int) get(contentResolver, "connection_service_keep_alive_count", 2L);
+    }
+
+    /**
+     * Returns how long a connection manager's query for remote connection services waits for the
+     * SIM connection services to bind. Services not bound by then are left out of the answer.
+     */
+    public static long getRemoteConnectionServicesTimeoutMillis(ContentResolver contentResolver) {
+        return get(contentResolver, "remote_connection_services_timeout_ms", 2000L);
+    }
+
+    /**
+     * Returns how long an emergency call attempt may go without a response before the next
+     * connection service is also tried in parallel. A value of 0 or less disables parallel
+     * attempts, so connection services are tried strictly one at a time.
+     */
+    public static long getEmergencyCallHedgeDelayMillis(ContentResolver contentResolver) {
+        return get(contentResolver, "emergency_call_hedge_delay_ms", 0L);
+    }
+
+    /**
+     * Returns the margin added to the observed connection latency when computing an adaptive
+     * create connection timeout.
+     */
+    public static long getCreateConnectionTimeoutMarginMillis(ContentResolver contentResolver) {
+        return get(contentResolver, "create_connection_timeout_margin_ms", 3000L);
+    }
+
+    /**
+     * Returns the shortest adaptive create connection timeout which will be used, however fast
+     * connections have been observed to complete.
+     */
+    public static long getCreateConnectionTimeoutMinMillis(ContentResolver contentResolver) {
+        return get(contentResolver, "create_connection_timeout_min_ms", 5000L);
+    }
+
+    /**
+     * Returns how long a binder caller of {@code TelecomManager#endCall} waits for the main
+     * thread before giving up and reporting that no call was ended.
+     */
+    public static long getEndCallRequestTimeoutMillis(ContentResolver contentResolver) {
+        return get(contentResolver, "end_call_request_timeout_ms", 5000L);
+    }
+
+    /**
+     * Returns how long a binder caller of the TTY queries waits for the main thread before giving
+     * up and reporting that TTY is unsupported or off.
+     */
+    public static long getTtyRequestTimeoutMillis(ContentResolver contentResolver) {
+        return get(contentResolver, "tty_request_timeout_ms", 1000L);
+    }
+
+    /**
+     * Returns how many new incoming or unknown call requests one phone account may make in a
+     * burst before further requests are rejected. A value of 0 or less disables the limit.
+     */
+    public static long getIncomingCallAdmissionBurst(ContentResolver contentResolver) {
+        return get(contentResolver, "incoming_call_admission_burst", 10L);
+    }
+
+    /**
+     * Returns how often a phone account regains one new incoming or unknown call request once
+     * its burst is used up.
+     */
+    public static long getIncomingCallAdmissionRefillMillis(ContentResolver contentResolver) {
+        return get(contentResolver, "incoming_call_admission_refill_ms", 1000L);
+    }
+
+    /**
+     * Returns how long a cached caller info lookup may be reused for a later call from the same
+     * number. The cache is also cleared whenever contacts change.
+     */
+    public static long getCallerInfoCacheTtlMillis(ContentResolver contentResolver) {
+        return get(contentResolver, "caller_info_cache_ttl_ms", 600000L /* 10 minutes */);
+    }
+
+    /**
+     * Returns how long a cached decision on whether a contact's calls should ring may be reused.
+     * The cache is also cleared whenever contacts or the zen mode change, but not when the set of
+     * priority callers changes.
+     */
+    public static long getRingDecisionCacheTtlMillis(ContentResolver contentResolver) {
+        return get(contentResolver, "ring_decision_cache_ttl_ms", 60000L /* 1 minute */);
+    }
+
+    /**
+     * Returns how long a shared tone generator is kept once nothing uses it, so that a DTMF
+     * session starting again soon after, such as when swapping calls, can reuse it.
+     */
+    public static long getToneGeneratorIdleReleaseMillis(ContentResolver contentResolver) {
+        return get(contentResolver, "tone_generator_idle_release_ms", 30000L);
+    }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.UiThreadTest;
+
+import com.google.common.collect.HashBiMap;
+
+/**
+ * Compares {@link CallIdMapper} against the {@link HashBiMap} based mapping it replaced, using the
+ * lookup mix seen when parceling a conference (one forward lookup per adapter message and several
+ * reverse lookups per parceled call). Lives in the Telecom package since the mapper and
+ * {@link Call} are package private.
+ */
+public class CallIdMapperBenchmark extends InstrumentationTestCase {
+    private static final int CALL_COUNT = 8;
+    private static final int ITERATIONS = 200000;
+
+    /** The previous implementation, kept here only as a baseline. */
+    private static final class BiMapCallIdMapper {
+        private final HashBiMap<String, Call> mCalls = HashBiMap.create();
+
+        void addCall(Call call, String id) {
+            mCalls.put(id, call);
+        }
+
+        String getCallId(Call call) {
+            return mCalls.inverse().get(call);
+        }
+
+        Call getCall(String id) {
+            return mCalls.get(id);
+        }
+    }
+
+    private Call[] mCalls;
+
+    private Call[] createCalls() {
+        Call[] calls = new Call[CALL_COUNT];
+        for (int i = 0; i < CALL_COUNT; i++) {
+            calls[i] = new Call(getInstrumentation().getTargetContext(), null /* repository */,
+                    null /* handle */, null /* gatewayInfo */,
+                    null /* connectionManagerPhoneAccountHandle */,
+                    null /* targetPhoneAccountHandle */, false /* isIncoming */,
+                    false /* isConference */);
+        }
+        return calls;
+    }
+
+    @UiThreadTest
+    public void testMappingsMatch() {
+        mCalls = createCalls();
+        CallIdMapper mapper = new CallIdMapper("Test");
+        for (Call call : mCalls) {
+            mapper.addCall(call);
+        }
+        for (Call call : mCalls) {
+            String id = mapper.getCallId(call);
+            assertNotNull(id);
+            assertTrue(mapper.isValidCallId(id));
+            assertSame(call, mapper.getCall(id));
+        }
+
+        // Replacing moves the ID, removing clears both directions.
+        mapper.replaceCall(mCalls[1], mCalls[0]);
+        assertNull(mapper.getCallId(mCalls[0]));
+        mapper.removeCall(mCalls[1]);
+        assertNull(mapper.getCallId(mCalls[1]));
+
+        // A second mapper assigns its own independent IDs to the same calls.
+        CallIdMapper otherMapper = new CallIdMapper("Other");
+        otherMapper.addCall(mCalls[2]);
+        assertFalse(otherMapper.getCallId(mCalls[2]).equals(mapper.getCallId(mCalls[2])));
+
+        mapper.clear();
+        assertNull(mapper.getCallId(mCalls[2]));
+        assertNotNull(otherMapper.getCallId(mCalls[2]));
+    }
+
+    @UiThreadTest
+    public void testLookupPerformance() {
+        mCalls = createCalls();
+        CallIdMapper mapper = new CallIdMapper("Test");
+        BiMapCallIdMapper biMapper = new BiMapCallIdMapper();
+        String[] ids = new String[CALL_COUNT];
+        for (int i = 0; i < CALL_COUNT; i++) {
+            mapper.addCall(mCalls[i]);
+            ids[i] = mapper.getCallId(mCalls[i]);
+            biMapper.addCall(mCalls[i], ids[i]);
+        }
+
+        // Warm up both paths before timing.
+        runBiMap(biMapper, ids, ITERATIONS / 10);
+        runMapper(mapper, ids, ITERATIONS / 10);
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        runBiMap(biMapper, ids, ITERATIONS);
+        long biMapNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        runMapper(mapper, ids, ITERATIONS);
+        long mapperNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.i(this, "HashBiMap: %d ns/op, CallIdMapper: %d ns/op",
+                biMapNanos / ITERATIONS, mapperNanos / ITERATIONS);
+    }
+
+    private void runBiMap(BiMapCallIdMapper mapper, String[] ids, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            int index = i % CALL_COUNT;
+            Call call = mapper.getCall(ids[index]);
+            for (Call other : mCalls) {
+                mapper.getCallId(other);
+            }
+            assertSame(mCalls[index], call);
+        }
+    }
+
+    private void runMapper(CallIdMapper mapper, String[] ids, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            int index = i % CALL_COUNT;
+            Call call = mapper.getCall(ids[index]);
+            for (Call other : mCalls) {
+                mapper.getCallId(other);
+            }
+            assertSame(mCalls[index], call);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.content.ComponentName;
+import android.net.Uri;
+import android.os.Parcel;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
+import android.test.InstrumentationTestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares fetching a dialer's call capable accounts one by one (list the handles, then one
+ * {@code getPhoneAccount} per handle) against the single bulk query, for 1, 4 and 16 accounts.
+ *
+ * Both paths do the work TelecomService does for each binder call: every simulated call works
+ * out the caller's visible profiles and filters its result by them, and marshals its request and
+ * reply through a {@link Parcel}. The kernel transition and thread hop are not included; they add
+ * a roughly fixed cost per round trip, so the round trip counts are reported alongside the
+ * median timings to estimate the full saving on a given device.
+ */
+public class PhoneAccountQueryBenchmark extends InstrumentationTestCase {
+    private static final String FILE_NAME = "phone-account-query-benchmark.xml";
+    private static final String DESCRIPTOR = "com.android.internal.telecom.ITelecomService";
+    private static final int QUERIES_PER_ROUND = 50;
+    private static final int ROUNDS = 9;
+    private static final int[] ACCOUNT_COUNTS = { 1, 4, 16 };
+
+    /** The profiles of the user the test runs as, as a system app caller would see them. */
+    private final List<UserHandle> mUserProfiles = new ArrayList<>();
+
+    private PhoneAccountRegistrar mRegistrar;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRegistrar = new PhoneAccountRegistrar(getInstrumentation().getTargetContext(), FILE_NAME);
+        mUserProfiles.add(Process.myUserHandle());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRegistrar = null;
+        new File(getInstrumentation().getTargetContext().getFilesDir(), FILE_NAME).delete();
+        super.tearDown();
+    }
+
+    private void registerAccounts(int count) {
+        ComponentName componentName = new ComponentName(
+                "com.android.server.telecom.tests",
+                "com.android.server.telecom.tests.MockConnectionService");
+        for (int i = 0; i < count; i++) {
+            PhoneAccountHandle handle =
+                    new PhoneAccountHandle(componentName, "id" + i, Process.myUserHandle());
+            mRegistrar.registerPhoneAccount(PhoneAccount.builder(handle, "label" + i)
+                    .setAddress(Uri.parse("tel:555-000" + i))
+                    .setCapabilities(PhoneAccount.CAPABILITY_CALL_PROVIDER)
+                    .addSupportedUriScheme(PhoneAccount.SCHEME_TEL)
+                    .build());
+        }
+    }
+
+    public void testBulkQueryMatchesPerAccountQueries() {
+        registerAccounts(4);
+        List<PhoneAccount> perAccount = queryPerAccount();
+        List<PhoneAccount> bulk = queryBulk();
+        assertEquals(perAccount.size(), bulk.size());
+        for (int i = 0; i < bulk.size(); i++) {
+            assertEquals(perAccount.get(i).getAccountHandle(), bulk.get(i).getAccountHandle());
+        }
+    }
+
+    public void testQueryPerformance() {
+        int registered = 0;
+        for (int count : ACCOUNT_COUNTS) {
+            registerAccounts(count - registered);
+            registered = count;
+
+            // Interleave the two paths so that both see the same JIT and cache state, and report
+            // the median round to discount GC pauses.
+            long[] perAccountNanos = new long[ROUNDS];
+            long[] bulkNanos = new long[ROUNDS];
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                for (int i = 0; i < QUERIES_PER_ROUND; i++) {
+                    assertEquals(count, queryPerAccount().size());
+                }
+                perAccountNanos[round] = SystemClock.elapsedRealtimeNanos() - start;
+
+                start = SystemClock.elapsedRealtimeNanos();
+                for (int i = 0; i < QUERIES_PER_ROUND; i++) {
+                    assertEquals(count, queryBulk().size());
+                }
+                bulkNanos[round] = SystemClock.elapsedRealtimeNanos() - start;
+            }
+
+            Log.i(this, "accounts=%d per-account: %d round trips, median %d us; "
+                    + "bulk: 1 round trip, median %d us", count, count + 1,
+                    median(perAccountNanos) / QUERIES_PER_ROUND / 1000,
+                    median(bulkNanos) / QUERIES_PER_ROUND / 1000);
+        }
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    /** Does what TelecomService does per binder call to work out the caller's profiles. */
+    private List<UserHandle> getCallerProfiles() {
+        return PhoneAccountRegistrar.getProfilesVisibleToCaller(
+                true /* isCallerSystemApp */, Process.myUserHandle(), mUserProfiles);
+    }
+
+    private List<PhoneAccount> queryPerAccount() {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            List<UserHandle> profiles = getCallerProfiles();
+            List<PhoneAccountHandle> visibleHandles = new ArrayList<>();
+            for (PhoneAccountHandle handle : mRegistrar.getCallCapablePhoneAccounts()) {
+                if (PhoneAccountRegistrar.isVisibleToProfiles(
+                        mRegistrar.getPhoneAccount(handle), profiles)) {
+                    visibleHandles.add(handle);
+                }
+            }
+            reply.writeTypedList(visibleHandles);
+            reply.setDataPosition(0);
+            List<PhoneAccountHandle> handles =
+                    reply.createTypedArrayList(PhoneAccountHandle.CREATOR);
+
+            List<PhoneAccount> accounts = new ArrayList<>(handles.size());
+            for (PhoneAccountHandle handle : handles) {
+                data.setDataSize(0);
+                reply.setDataSize(0);
+                data.writeInterfaceToken(DESCRIPTOR);
+                handle.writeToParcel(data, 0);
+                data.setDataPosition(0);
+                data.enforceInterface(DESCRIPTOR);
+                PhoneAccountHandle requested = PhoneAccountHandle.CREATOR.createFromParcel(data);
+                PhoneAccount account = mRegistrar.getPhoneAccount(requested);
+                if (!PhoneAccountRegistrar.isVisibleToProfiles(account, getCallerProfiles())) {
+                    continue;
+                }
+                account.writeToParcel(reply, 0);
+                reply.setDataPosition(0);
+                accounts.add(PhoneAccount.CREATOR.createFromParcel(reply));
+            }
+            return accounts;
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+    }
+
+    private List<PhoneAccount> queryBulk() {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            data.writeInt(PhoneAccount.CAPABILITY_CALL_PROVIDER);
+            data.writeString(null);
+            data.setDataPosition(0);
+            data.enforceInterface(DESCRIPTOR);
+            reply.writeTypedList(mRegistrar.getPhoneAccounts(data.readInt(), data.readString(),
+                    getCallerProfiles()));
+            reply.setDataPosition(0);
+            return reply.createTypedArrayList(PhoneAccount.CREATOR);
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.tests.unit;
+
+import android.os.Process;
+import android.os.UserHandle;
+import com.android.server.telecom.PhoneAccountRegistrar;
+
+import android.content.ComponentName;
+import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests the caller visibility rules applied by the bulk {@link PhoneAccount} query.
+ */
+public class PhoneAccountVisibilityTest extends AndroidTestCase {
+
+    private static final String FILE_NAME = "phone-account-visibility-test.xml";
+    private static final UserHandle OTHER_USER = new UserHandle(10);
+
+    private PhoneAccountRegistrar mRegistrar;
+
+    @Override
+    public void setUp() {
+        mRegistrar = new PhoneAccountRegistrar(getContext(), FILE_NAME);
+    }
+
+    @Override
+    public void tearDown() {
+        mRegistrar = null;
+        new File(getContext().getFilesDir(), FILE_NAME).delete();
+    }
+
+    public void testSystemAppSeesAllProfiles() {
+        List<UserHandle> userProfiles = Arrays.asList(Process.myUserHandle(), OTHER_USER);
+        assertEquals(userProfiles, PhoneAccountRegistrar.getProfilesVisibleToCaller(
+                true /* isCallerSystemApp */, Process.myUserHandle(), userProfiles));
+    }
+
+    public void testOtherAppSeesOnlyItsOwnProfile() {
+        List<UserHandle> userProfiles = Arrays.asList(Process.myUserHandle(), OTHER_USER);
+        List<UserHandle> visible = PhoneAccountRegistrar.getProfilesVisibleToCaller(
+                false /* isCallerSystemApp */, OTHER_USER, userProfiles);
+        assertEquals(1, visible.size());
+        assertEquals(OTHER_USER, visible.get(0));
+    }
+
+    public void testIsVisibleToProfiles() {
+        List<UserHandle> profiles = Arrays.asList(Process.myUserHandle());
+        PhoneAccount ownAccount = makeAccount("own", Process.myUserHandle(),
+                PhoneAccount.CAPABILITY_CALL_PROVIDER);
+        PhoneAccount otherAccount = makeAccount("other", OTHER_USER,
+                PhoneAccount.CAPABILITY_CALL_PROVIDER);
+        PhoneAccount multiUserAccount = makeAccount("multi", OTHER_USER,
+                PhoneAccount.CAPABILITY_CALL_PROVIDER | PhoneAccount.CAPABILITY_MULTI_USER);
+
+        assertFalse(PhoneAccountRegistrar.isVisibleToProfiles(null, profiles));
+        assertTrue(PhoneAccountRegistrar.isVisibleToProfiles(ownAccount, profiles));
+        assertFalse(PhoneAccountRegistrar.isVisibleToProfiles(otherAccount, profiles));
+        assertTrue(PhoneAccountRegistrar.isVisibleToProfiles(multiUserAccount, profiles));
+    }
+
+    public void testBulkQueryAppliesCapabilitiesSchemeAndVisibility() {
+        mRegistrar.registerPhoneAccount(makeAccount("tel0", Process.myUserHandle(),
+                PhoneAccount.CAPABILITY_CALL_PROVIDER));
+        mRegistrar.registerPhoneAccount(makeAccount("tel1", Process.myUserHandle(),
+                PhoneAccount.CAPABILITY_CALL_PROVIDER));
+        mRegistrar.registerPhoneAccount(makeAccount("multi", Process.myUserHandle(),
+                PhoneAccount.CAPABILITY_CALL_PROVIDER | PhoneAccount.CAPABILITY_MULTI_USER));
+        mRegistrar.registerPhoneAccount(makeAccount("mgr", Process.myUserHandle(),
+                PhoneAccount.CAPABILITY_CONNECTION_MANAGER));
+        mRegistrar.registerPhoneAccount(new PhoneAccount.Builder(
+                makeAccountHandle("sip", Process.myUserHandle()), "sip")
+                .setCapabilities(PhoneAccount.CAPABILITY_CALL_PROVIDER)
+                .addSupportedUriScheme(PhoneAccount.SCHEME_SIP)
+                .build());
+
+        // A caller in the owning profile sees every call provider supporting tel:.
+        List<UserHandle> ownProfile = Arrays.asList(Process.myUserHandle());
+        assertEquals(Arrays.asList("tel0", "tel1", "multi"), getIds(mRegistrar.getPhoneAccounts(
+                PhoneAccount.CAPABILITY_CALL_PROVIDER, PhoneAccount.SCHEME_TEL, ownProfile)));
+
+        // A caller in another profile only sees the multi-user account.
+        List<UserHandle> otherProfile = Arrays.asList(OTHER_USER);
+        assertEquals(Arrays.asList("multi"), getIds(mRegistrar.getPhoneAccounts(
+                PhoneAccount.CAPABILITY_CALL_PROVIDER, PhoneAccount.SCHEME_TEL, otherProfile)));
+
+        // Without a scheme the SIP account is included too.
+        assertEquals(4, mRegistrar.getPhoneAccounts(
+                PhoneAccount.CAPABILITY_CALL_PROVIDER, null, ownProfile).size());
+    }
+
+    public void testBulkQueryMatchesPerHandleQueries() {
+        for (int i = 0; i < 4; i++) {
+            mRegistrar.registerPhoneAccount(makeAccount("id" + i, Process.myUserHandle(),
+                    PhoneAccount.CAPABILITY_CALL_PROVIDER));
+        }
+        List<UserHandle> profiles = Arrays.asList(Process.myUserHandle());
+
+        List<PhoneAccount> perHandle = new ArrayList<>();
+        for (PhoneAccountHandle handle :
+                mRegistrar.getCallCapablePhoneAccounts(PhoneAccount.SCHEME_TEL)) {
+            PhoneAccount account = mRegistrar.getPhoneAccount(handle);
+            if (PhoneAccountRegistrar.isVisibleToProfiles(account, profiles)) {
+                perHandle.add(account);
+            }
+        }
+        assertEquals(getIds(perHandle), getIds(mRegistrar.getPhoneAccounts(
+                PhoneAccount.CAPABILITY_CALL_PROVIDER, PhoneAccount.SCHEME_TEL, profiles)));
+    }
+
+    private static List<String> getIds(List<PhoneAccount> accounts) {
+        List<String> ids = new ArrayList<>(accounts.size());
+        for (PhoneAccount account : accounts) {
+            ids.add(account.getAccountHandle().getId());
+        }
+        return ids;
+    }
+
+    private static PhoneAccountHandle makeAccountHandle(String id, UserHandle userHandle) {
+        return new PhoneAccountHandle(
+                new ComponentName(
+                        "com.android.server.telecom.tests",
+                        "com.android.server.telecom.tests.MockConnectionService"
+                ),
+                id,
+                userHandle);
+    }
+
+    private static PhoneAccount makeAccount(String id, UserHandle userHandle, int capabilities) {
+        return new PhoneAccount.Builder(makeAccountHandle(id, userHandle), id)
+                .setCapabilities(capabilities)
+                .addSupportedUriScheme(PhoneAccount.SCHEME_TEL)
+                .build();
+    }
+}